@@ -15,36 +15,151 @@
 
 package com.google.apigee;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class IOUtil {
   private static final int BUF_SIZE = 0x1000;
 
+  // Copy buffers are shared by concurrent callouts. At most MAX_POOLED_BUFFERS are
+  // kept, so the pool holds at most 64 KiB; beyond that, buffers are allocated as needed.
+  private static final int MAX_POOLED_BUFFERS = 16;
+  private static final BlockingQueue<byte[]> bufferPool =
+      new ArrayBlockingQueue<byte[]>(MAX_POOLED_BUFFERS);
+
+  private static byte[] takeBuffer() {
+    byte[] buf = bufferPool.poll();
+    return (buf != null) ? buf : new byte[BUF_SIZE];
+  }
+
+  private static void returnBuffer(byte[] buf) {
+    bufferPool.offer(buf);
+  }
+
   public static long copy(InputStream from, OutputStream to) throws IOException {
+    return copy(from, to, Long.MAX_VALUE);
+  }
+
+  /** Copies the stream to its end, or until max bytes have been copied. */
+  public static long copy(InputStream from, OutputStream to, long max) throws IOException {
     if (from == null) throw new IllegalArgumentException("from");
     if (to == null) throw new IllegalArgumentException("to");
-    byte[] buf = new byte[BUF_SIZE];
-    long total = 0;
-    while (true) {
-      int r = from.read(buf);
-      if (r == -1) {
-        break;
+    byte[] buf = takeBuffer();
+    try {
+      long total = 0;
+      while (total < max) {
+        int r = from.read(buf, 0, (int) Math.min(buf.length, max - total));
+        if (r == -1) {
+          break;
+        }
+        to.write(buf, 0, r);
+        total += r;
       }
-      to.write(buf, 0, r);
-      total += r;
+      return total;
+    } finally {
+      returnBuffer(buf);
     }
-    return total;
   }
 
-  public static byte[] readAllBytes(InputStream is) throws IOException {
-    ByteArrayOutputStream os = new ByteArrayOutputStream();
-    byte[] buf = new byte[BUF_SIZE];
-    for (int len = is.read(buf); len != -1; len = is.read(buf)) {
-      os.write(buf, 0, len);
+  public static long copy(ByteBuffer from, OutputStream to) throws IOException {
+    if (from == null) throw new IllegalArgumentException("from");
+    if (to == null) throw new IllegalArgumentException("to");
+    ByteBuffer src = from.duplicate();
+    long total = src.remaining();
+    if (src.hasArray()) {
+      to.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+      return total;
+    }
+    byte[] buf = takeBuffer();
+    try {
+      while (src.hasRemaining()) {
+        int n = Math.min(buf.length, src.remaining());
+        src.get(buf, 0, n);
+        to.write(buf, 0, n);
+      }
+      return total;
+    } finally {
+      returnBuffer(buf);
+    }
+  }
+
+  public static byte[] toByteArray(ByteBuffer from) {
+    ByteBuffer src = from.duplicate();
+    byte[] bytes = new byte[src.remaining()];
+    src.get(bytes);
+    return bytes;
+  }
+
+  /** Decodes the remaining content of the buffer, without changing its position. */
+  public static String toString(ByteBuffer from, Charset charset) {
+    ByteBuffer src = from.duplicate();
+    if (src.hasArray()) {
+      return new String(src.array(), src.arrayOffset() + src.position(), src.remaining(), charset);
     }
+    return charset.decode(src).toString();
+  }
+
+  /** Returns a stream that reads the remaining content of the buffer, without copying it. */
+  public static InputStream asInputStream(ByteBuffer from) {
+    final ByteBuffer src = from.duplicate();
+    return new InputStream() {
+      @Override
+      public int read() {
+        return src.hasRemaining() ? src.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+          return 0;
+        }
+        if (!src.hasRemaining()) {
+          return -1;
+        }
+        int n = Math.min(len, src.remaining());
+        src.get(b, off, n);
+        return n;
+      }
+
+      @Override
+      public int available() {
+        return src.remaining();
+      }
+    };
+  }
+
+  public static byte[] readAllBytes(InputStream is) throws IOException {
+    return readAtMost(is, Integer.MAX_VALUE - 8);
+  }
+
+  /**
+   * Reads the stream to its end, or until it has given more than max bytes. The result is then
+   * max + 1 bytes long, so the caller can tell that the stream was longer; the rest of it is not
+   * read.
+   */
+  public static byte[] readAtMost(InputStream is, int max) throws IOException {
+    // size the output for the whole stream, if it tells how much is left
+    ByteArrayOutputStream os =
+        new ByteArrayOutputStream(Math.max(32, Math.min(is.available(), max + 1)));
+    copy(is, os, (long) max + 1);
     return os.toByteArray();
   }
+
+  /** A ByteArrayOutputStream whose content can be read back without copying it. */
+  public static class OutputBuffer extends ByteArrayOutputStream {
+    public OutputBuffer(int size) {
+      super(size);
+    }
+
+    public InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
 }
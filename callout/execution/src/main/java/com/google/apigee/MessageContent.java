@@ -0,0 +1,150 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The content of a message, held in memory or, when it is longer than a threshold, in a temporary
+ * file that is mapped into memory. Either way the content is read through a ByteBuffer, and the
+ * heap holds no more of it than the threshold.
+ *
+ * <p>Closing unmaps the file and deletes it, so that its disk space is freed at once. No buffer
+ * taken from the content may be read after that.
+ */
+public final class MessageContent implements Closeable {
+  /** The most bytes of content that can be read, with or without a file. */
+  public static final int MAX_LENGTH = Integer.MAX_VALUE - 9;
+
+  private final ByteBuffer buffer;
+  private final FileChannel channel;
+  private final Path file;
+
+  private MessageContent(ByteBuffer buffer, FileChannel channel, Path file) {
+    this.buffer = buffer;
+    this.channel = channel;
+    this.file = file;
+  }
+
+  /**
+   * Reads the stream to its end, or until it has given more than max bytes, as {@link
+   * IOUtil#readAtMost(InputStream, int)} does. The content is then max + 1 bytes long, whether it
+   * is held in memory or in a file.
+   *
+   * @param threshold the most bytes held in memory, or -1 for no limit.
+   * @param max the most bytes expected, or -1 for {@link #MAX_LENGTH}.
+   */
+  public static MessageContent read(InputStream in, int threshold, int max) throws IOException {
+    int limit = (max < 0 || max > MAX_LENGTH) ? MAX_LENGTH : max;
+    if (threshold < 0 || threshold >= limit) {
+      return new MessageContent(ByteBuffer.wrap(IOUtil.readAtMost(in, limit)), null, null);
+    }
+    byte[] head = IOUtil.readAtMost(in, threshold);
+    if (head.length <= threshold) {
+      return new MessageContent(ByteBuffer.wrap(head), null, null);
+    }
+
+    Path file = Files.createTempFile("xop-", ".tmp");
+    FileChannel channel = null;
+    try {
+      try (OutputStream out = Files.newOutputStream(file)) {
+        out.write(head);
+        // up to one byte past the limit, as in memory
+        IOUtil.copy(in, out, (long) limit + 1 - head.length);
+      }
+      channel = FileChannel.open(file, StandardOpenOption.READ);
+      return new MessageContent(
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), channel, file);
+    } catch (IOException | RuntimeException e) {
+      if (channel != null) {
+        channel.close();
+      }
+      delete(file);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the content. The buffer must not be modified; a buffer over a file is read-only.
+   */
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  /** Whether the content was written to a file, rather than held on the heap. */
+  public boolean isSpilled() {
+    return file != null;
+  }
+
+  /** Unmaps and deletes the file, if there is one. */
+  @Override
+  public void close() {
+    if (file != null) {
+      unmap(buffer);
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // the file is deleted all the same
+      }
+      delete(file);
+    }
+  }
+
+  // A mapping is otherwise released only when its buffer is garbage collected, and until then a
+  // deleted file still takes up disk space. There is no public API to release it, so the cleaner
+  // of the buffer is run directly: through Unsafe on Java 9 and later, or the buffer itself on
+  // Java 8. If neither can be reached, the mapping is left to the garbage collector.
+  private static void unmap(ByteBuffer buffer) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner;
+      try {
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch (NoSuchMethodException e) {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+        return;
+      }
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // left to the garbage collector
+    }
+  }
+
+  private static void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      file.toFile().deleteOnExit();
+    }
+  }
+}
@@ -27,14 +27,15 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public abstract class CalloutBase {
-  private static final Pattern variableReferencePattern =
-    Pattern.compile("(.*?)\\{([^\\{\\} :][^\\{\\} ]*?)\\}(.*?)");
   private static final Pattern commonErrorPattern = Pattern.compile("^(.+?)[:;] (.+)$");
   protected Map<String, String> properties; // read-only
+  // the trimmed value of each property that is not blank, compiled
+  private final Map<String, VariableTemplate> templates;
 
   public CalloutBase(Map properties) {
     // convert the untyped Map to a generic map
@@ -48,6 +49,53 @@ public abstract class CalloutBase {
       }
     }
     this.properties = Collections.unmodifiableMap(m);
+    Map<String, VariableTemplate> t = new HashMap<String, VariableTemplate>();
+    for (Map.Entry<String, String> entry : m.entrySet()) {
+      String value = entry.getValue().trim();
+      if (!value.equals("")) {
+        t.put(entry.getKey(), VariableTemplate.compile(value));
+      }
+    }
+    this.templates = t;
+  }
+
+  /**
+   * A property, parsed once when the callout is created. A property that refers to variables is
+   * instead resolved and parsed on each call. Either way, the parser receives the resolved value,
+   * or null if the property is absent or blank. A fixed value that does not parse is parsed again
+   * on each call, so that each call reports the error.
+   *
+   * <p>Apigee may run one callout instance on several threads at once; a Setting holds no state
+   * that changes after it is created.
+   */
+  protected final class Setting<T> {
+    private final VariableTemplate template;
+    private final Function<String, T> parser;
+    private final boolean fixed;
+    private final T value;
+
+    public Setting(String propName, Function<String, T> parser) {
+      this.template = templates.get(propName);
+      this.parser = parser;
+      boolean fixed = (template == null || !template.hasReferences());
+      T value = null;
+      if (fixed) {
+        try {
+          value = parser.apply((template == null) ? null : template.resolve(null));
+        } catch (RuntimeException e) {
+          fixed = false;
+        }
+      }
+      this.fixed = fixed;
+      this.value = value;
+    }
+
+    public T get(MessageContext msgCtxt) {
+      if (fixed) {
+        return value;
+      }
+      return parser.apply((template == null) ? null : template.resolve(msgCtxt));
+    }
   }
 
   public abstract String getVarnamePrefix();
@@ -81,17 +129,12 @@ public abstract class CalloutBase {
 
   protected String getSimpleRequiredProperty(String propName, MessageContext msgCtxt)
       throws Exception {
-    String value = (String) this.properties.get(propName);
-    if (value == null) {
+    VariableTemplate template = templates.get(propName);
+    if (template == null) {
       throw new IllegalStateException(
           String.format("configuration error: %s resolves to an empty string", propName));
     }
-    value = value.trim();
-    if (value.equals("")) {
-      throw new IllegalStateException(
-          String.format("configuration error: %s resolves to an empty string", propName));
-    }
-    value = resolveVariableReferences(value, msgCtxt);
+    String value = template.resolve(msgCtxt);
     if (value == null || value.equals("")) {
       throw new IllegalStateException(
           String.format("configuration error: %s resolves to an empty string", propName));
@@ -101,16 +144,11 @@ public abstract class CalloutBase {
 
   protected String getSimpleOptionalProperty(String propName, MessageContext msgCtxt)
       throws Exception {
-    Object value = this.properties.get(propName);
-    if (value == null) {
-      return null;
-    }
-    String v = (String) value;
-    v = v.trim();
-    if (v.equals("")) {
+    VariableTemplate template = templates.get(propName);
+    if (template == null) {
       return null;
     }
-    v = resolveVariableReferences(v, msgCtxt);
+    String v = template.resolve(msgCtxt);
     if (v == null || v.equals("")) {
       return null;
     }
@@ -118,24 +156,7 @@ public abstract class CalloutBase {
   }
 
   protected String resolveVariableReferences(String spec, MessageContext msgCtxt) {
-    Matcher matcher = variableReferencePattern.matcher(spec);
-    StringBuffer sb = new StringBuffer();
-    while (matcher.find()) {
-      matcher.appendReplacement(sb, "");
-      sb.append(matcher.group(1));
-      String ref = matcher.group(2);
-      String[] parts = ref.split(":",2);
-      Object v = msgCtxt.getVariable(parts[0]);
-      if (v != null) {
-        sb.append((String) v);
-      }
-      else if (parts.length>1){
-        sb.append(parts[1]);
-      }
-      sb.append(matcher.group(3));
-    }
-    matcher.appendTail(sb);
-    return sb.toString();
+    return VariableTemplate.compile(spec).resolve(msgCtxt);
   }
 
   public static byte[] streamToByteArray(InputStream is) throws IOException {
@@ -0,0 +1,77 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.edgecallouts;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The time spent in each phase of one execution of a callout, and counts of what it handled.
+ *
+ * <p>Phases are timed as laps: each call to {@link #lap(String)} ends the phase under way and
+ * starts the next. The {@link #DISABLED} instance records nothing, so that a callout can mark its
+ * phases unconditionally at next to no cost.
+ */
+final class Metrics {
+  static final Metrics DISABLED = new Metrics(false);
+
+  private final boolean enabled;
+  private final long start;
+  private long lapStart;
+  private final Map<String, Long> values;
+
+  private Metrics(boolean enabled) {
+    this.enabled = enabled;
+    this.start = enabled ? System.nanoTime() : 0;
+    this.lapStart = start;
+    this.values = enabled ? new LinkedHashMap<String, Long>() : Collections.emptyMap();
+  }
+
+  /** Returns a new instance that records, with its first phase starting now. */
+  static Metrics start() {
+    return new Metrics(true);
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Ends the phase under way, adding its time to that of the named phase, and starts the next. */
+  void lap(String phase) {
+    if (enabled) {
+      long now = System.nanoTime();
+      values.merge(phase + "_nanos", now - lapStart, Long::sum);
+      lapStart = now;
+    }
+  }
+
+  void set(String name, long value) {
+    if (enabled) {
+      values.put(name, value);
+    }
+  }
+
+  /**
+   * Returns the values recorded so far, in the order they were first recorded, followed by the
+   * total time since the start.
+   */
+  Map<String, Long> values() {
+    if (enabled) {
+      values.put("total_nanos", System.nanoTime() - start);
+    }
+    return values;
+  }
+}
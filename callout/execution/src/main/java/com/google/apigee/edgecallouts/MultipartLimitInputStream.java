@@ -0,0 +1,107 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.edgecallouts;
+
+import com.github.danieln.multipart.MediaType;
+import com.github.danieln.multipart.MultipartListener;
+import com.github.danieln.multipart.MultipartParser;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Passes multipart content through a {@link MultipartParser} as it is read, so that the limits on
+ * parts and headers are enforced before the whole message has been read into memory. A read that
+ * takes the content past a limit throws an IOException. The parts themselves are not kept.
+ */
+final class MultipartLimitInputStream extends FilterInputStream {
+  private static final MultipartListener IGNORE_PARTS =
+      new MultipartListener() {
+        @Override
+        public void partStart() {}
+
+        @Override
+        public void header(String name, String value) {}
+
+        @Override
+        public void bodyChunk(ByteBuffer chunk) {}
+
+        @Override
+        public void partEnd() {}
+      };
+
+  private final MultipartParser parser;
+  // feeds the parser a byte read on its own
+  private final ByteBuffer single = ByteBuffer.allocate(1);
+
+  /**
+   * @param maxParts the most parts, or -1 for no limit.
+   * @param maxPartLength the most bytes in the body of a part, or -1 for no limit.
+   * @param maxHeaderLength the most bytes in the headers of a part, or -1 for no limit.
+   */
+  MultipartLimitInputStream(
+      InputStream in, MediaType mediaType, int maxParts, long maxPartLength, int maxHeaderLength) {
+    super(in);
+    this.parser = new MultipartParser(mediaType, IGNORE_PARTS);
+    parser.setMaxParts(maxParts);
+    parser.setMaxPartLength(maxPartLength);
+    parser.setMaxHeaderLength(maxHeaderLength);
+  }
+
+  @Override
+  public int read() throws IOException {
+    int c = super.read();
+    if (c < 0) {
+      parser.endOfInput();
+    } else {
+      single.put(0, (byte) c);
+      single.rewind();
+      parser.feed(single);
+    }
+    return c;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = super.read(b, off, len);
+    if (n < 0) {
+      parser.endOfInput();
+    } else if (n > 0) {
+      parser.feed(ByteBuffer.wrap(b, off, n));
+    }
+    return n;
+  }
+
+  // Skipped bytes must be parsed too, so they are read.
+  @Override
+  public long skip(long n) throws IOException {
+    byte[] buf = new byte[(int) Math.min(Math.max(n, 0), 4096)];
+    long skipped = 0;
+    while (skipped < n) {
+      int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+      if (r < 0) {
+        break;
+      }
+      skipped += r;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+}
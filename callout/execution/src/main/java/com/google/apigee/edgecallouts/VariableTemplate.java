@@ -0,0 +1,127 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.edgecallouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A property value compiled into literal text and variable references, such as {@code
+ * prefix-{request.header.id:none}}. A reference is a name in curly braces, optionally followed by
+ * a colon and a default value, used when the variable is not set. The name does not start with a
+ * space or colon, and neither name nor default contains a brace or a space; other text in braces
+ * is literal.
+ *
+ * <p>A template is immutable, and can be shared between threads.
+ */
+public final class VariableTemplate {
+  // Literal text and references, in order. For a reference, names[i] is the variable name and
+  // texts[i] the default, or null if there is none; for literal text, names[i] is null.
+  private final String[] names;
+  private final String[] texts;
+
+  private VariableTemplate(String[] names, String[] texts) {
+    this.names = names;
+    this.texts = texts;
+  }
+
+  public static VariableTemplate compile(String spec) {
+    List<String> names = new ArrayList<String>();
+    List<String> texts = new ArrayList<String>();
+    int literalStart = 0;
+    int i = spec.indexOf('{');
+    while (i >= 0) {
+      int end = referenceEnd(spec, i);
+      if (end < 0) {
+        i = spec.indexOf('{', i + 1);
+        continue;
+      }
+      if (literalStart < i) {
+        names.add(null);
+        texts.add(spec.substring(literalStart, i));
+      }
+      String ref = spec.substring(i + 1, end);
+      int colon = ref.indexOf(':');
+      names.add((colon < 0) ? ref : ref.substring(0, colon));
+      texts.add((colon < 0) ? null : ref.substring(colon + 1));
+      literalStart = end + 1;
+      i = spec.indexOf('{', literalStart);
+    }
+    if (literalStart < spec.length()) {
+      names.add(null);
+      texts.add(spec.substring(literalStart));
+    }
+    return new VariableTemplate(
+        names.toArray(new String[names.size()]), texts.toArray(new String[texts.size()]));
+  }
+
+  // Returns the position of the '}' that closes a reference opened at start, or -1 if the brace
+  // at start does not open a reference.
+  private static int referenceEnd(String spec, int start) {
+    int i = start + 1;
+    if (i >= spec.length()) {
+      return -1;
+    }
+    char c = spec.charAt(i);
+    if (c == '{' || c == '}' || c == ' ' || c == ':') {
+      return -1;
+    }
+    for (i++; i < spec.length(); i++) {
+      c = spec.charAt(i);
+      if (c == '}') {
+        return i;
+      }
+      if (c == '{' || c == ' ') {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /** Whether the template refers to any variable; if not, it always resolves to the same text. */
+  public boolean hasReferences() {
+    for (String name : names) {
+      if (name != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the text, with each reference replaced by the value of its variable, or its default
+   * if the variable is not set, or nothing if there is no default.
+   */
+  public String resolve(MessageContext msgCtxt) {
+    if (names.length == 1 && names[0] == null) {
+      return texts[0];
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < names.length; i++) {
+      if (names[i] == null) {
+        sb.append(texts[i]);
+      } else {
+        Object v = msgCtxt.getVariable(names[i]);
+        if (v != null) {
+          sb.append((String) v);
+        } else if (texts[i] != null) {
+          sb.append(texts[i]);
+        }
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -22,37 +22,59 @@ import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
+import com.github.danieln.multipart.ContentLengthMode;
+import com.github.danieln.multipart.MediaType;
+import com.github.danieln.multipart.MultipartIndex;
 import com.github.danieln.multipart.MultipartInput;
+import com.github.danieln.multipart.MultipartInputPool;
 import com.github.danieln.multipart.MultipartOutput;
 import com.github.danieln.multipart.PartInput;
 import com.github.danieln.multipart.PartOutput;
 import com.google.apigee.IOUtil;
+import com.google.apigee.MessageContent;
+import com.google.apigee.xml.PartialDocument;
+import com.google.apigee.xml.SplicingElementRemover;
+import com.google.apigee.xml.StreamingElementRemover;
+import com.google.apigee.xml.StreamingXopEmbedder;
 import com.google.apigee.xml.XPathEvaluator;
 import com.google.apigee.xml.XmlUtils;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import javax.xml.namespace.QName;
 import javax.xml.xpath.XPathConstants;
+import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
 
 public class XopHandler extends CalloutBase implements Execution {
   private static final String varprefix = "xop_";
   private static final boolean wantStringDefault = true;
   private static final XopAction DEFAULT_ACTION = XopAction.EDIT_1;
-  private static final Base64.Encoder b64Encoder = Base64.getEncoder();
+  private static final ContentLengthMode DEFAULT_CONTENT_LENGTH_MODE = ContentLengthMode.TRUST;
+  private static final XmlEngine DEFAULT_XML_ENGINE = XmlEngine.DOM;
+  private static final AttachmentContent DEFAULT_ATTACHMENT_CONTENT = AttachmentContent.BYTES;
   private static final List<String> DEFAULT_PART1_CTYPES =
       Arrays.asList("application/soap+xml", "application/xop+xml", "text/xml");
   private static final List<String> DEFAULT_PART2_CTYPES =
@@ -66,8 +88,60 @@ public class XopHandler extends CalloutBase implements Execution {
 
   private static final Pattern contentIdPattern = Pattern.compile("^.*<([^>]+)>$");
 
+  // Parsers are reused across calls; at most DEFAULT_MAX_IDLE are kept between calls.
+  private static final MultipartInputPool parserPool = new MultipartInputPool();
+
+  // The properties are parsed once, here; those that refer to variables are resolved on each call.
+  private final Setting<String> source;
+  private final Setting<XopAction> action;
+  private final Setting<List<String>> part1Ctypes;
+  private final Setting<List<String>> part2Ctypes;
+  private final Setting<ContentLengthMode> contentLengthMode;
+  private final Setting<XmlEngine> xmlEngine;
+  private final Setting<Boolean> pretty;
+  private final Setting<Boolean> checkXml;
+  private final Setting<Boolean> storeTransformed;
+  private final Setting<AttachmentContent> attachmentContent;
+  private final Setting<List<Pattern>> attachmentIds;
+  private final Setting<Set<Integer>> attachmentIndexes;
+  private final Setting<Integer> maxMessageBytes;
+  private final Setting<Integer> maxPartBytes;
+  private final Setting<Integer> maxParts;
+  private final Setting<Integer> maxHeaderBytes;
+  private final Setting<Integer> spillThreshold;
+  private final Setting<Boolean> publishMetrics;
+
   public XopHandler(Map properties) {
     super(properties);
+    source = new Setting<String>("source", v -> isEmpty(v) ? "message" : v);
+    action = new Setting<XopAction>("action", XopHandler::parseAction);
+    part1Ctypes = new Setting<List<String>>("part1-ctypes", v -> parseList(v, DEFAULT_PART1_CTYPES));
+    part2Ctypes = new Setting<List<String>>("part2-ctypes", v -> parseList(v, DEFAULT_PART2_CTYPES));
+    contentLengthMode =
+        new Setting<ContentLengthMode>("content-length-mode", XopHandler::parseContentLengthMode);
+    xmlEngine = new Setting<XmlEngine>("xml-engine", XopHandler::parseXmlEngine);
+    pretty = new Setting<Boolean>("pretty", v -> !isEmpty(v) && Boolean.parseBoolean(v));
+    checkXml = new Setting<Boolean>("check-xml", v -> !isEmpty(v) && Boolean.parseBoolean(v));
+    storeTransformed =
+        new Setting<Boolean>("store-transformed", v -> isEmpty(v) || Boolean.parseBoolean(v));
+    attachmentContent =
+        new Setting<AttachmentContent>("attachment-content", XopHandler::parseAttachmentContent);
+    attachmentIds = new Setting<List<Pattern>>("attachment-ids", XopHandler::parseAttachmentIds);
+    attachmentIndexes =
+        new Setting<Set<Integer>>("attachment-indexes", XopHandler::parseAttachmentIndexes);
+    maxMessageBytes =
+        new Setting<Integer>("max-message-bytes", v -> parseLimit("max-message-bytes", v));
+    maxPartBytes = new Setting<Integer>("max-part-bytes", v -> parseLimit("max-part-bytes", v));
+    maxParts = new Setting<Integer>("max-parts", v -> parseLimit("max-parts", v));
+    maxHeaderBytes =
+        new Setting<Integer>("max-header-bytes", v -> parseLimit("max-header-bytes", v));
+    spillThreshold =
+        new Setting<Integer>("spill-threshold", v -> parseLimit("spill-threshold", v));
+    publishMetrics = new Setting<Boolean>("metrics", v -> !isEmpty(v) && Boolean.parseBoolean(v));
+  }
+
+  private static boolean isEmpty(String s) {
+    return s == null || s.equals("");
   }
 
   enum XopAction {
@@ -86,14 +160,10 @@ public class XopHandler extends CalloutBase implements Execution {
     }
   };
 
-  private XopAction getAction(MessageContext msgCtxt) throws Exception {
-    String action = this.properties.get("action");
-    if (action != null) action = action.trim();
-    if (action == null || action.equals("")) {
+  private static XopAction parseAction(String action) {
+    if (action == null) {
       return DEFAULT_ACTION;
     }
-    action = resolveVariableReferences(action, msgCtxt);
-
     XopAction xopAction = XopAction.findByName(action.toUpperCase());
     if (xopAction == XopAction.UNSPECIFIED)
       throw new IllegalStateException("specify a valid action.");
@@ -101,6 +171,159 @@ public class XopHandler extends CalloutBase implements Execution {
     return xopAction;
   }
 
+  private XopAction getAction(MessageContext msgCtxt) throws Exception {
+    return action.get(msgCtxt);
+  }
+
+  enum XmlEngine {
+    DOM,
+    STAX,
+    SPLICE,
+    HYBRID
+  };
+
+  private static XmlEngine parseXmlEngine(String engine) {
+    if (isEmpty(engine)) {
+      return DEFAULT_XML_ENGINE;
+    }
+    try {
+      return XmlEngine.valueOf(engine.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalStateException("specify a valid xml-engine.");
+    }
+  }
+
+  private XmlEngine getXmlEngine(MessageContext msgCtxt) throws Exception {
+    return xmlEngine.get(msgCtxt);
+  }
+
+  private static ContentLengthMode parseContentLengthMode(String mode) {
+    if (isEmpty(mode)) {
+      return DEFAULT_CONTENT_LENGTH_MODE;
+    }
+    try {
+      return ContentLengthMode.valueOf(mode.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalStateException("specify a valid content-length-mode.");
+    }
+  }
+
+  enum AttachmentContent {
+    // a copy of the content, in a byte[]
+    BYTES,
+    // a read-only ByteBuffer that shares the content of the message, for Java callouts; it
+    // can't share content spilled to a file, which is deleted when the callout finishes
+    BUFFER
+  };
+
+  private static AttachmentContent parseAttachmentContent(String form) {
+    if (isEmpty(form)) {
+      return DEFAULT_ATTACHMENT_CONTENT;
+    }
+    try {
+      return AttachmentContent.valueOf(form.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalStateException("specify a valid attachment-content.");
+    }
+  }
+
+  // A comma-separated list of Content-IDs, in which * and ? are wildcards; null if there is none.
+  private static List<Pattern> parseAttachmentIds(String ids) {
+    if (isEmpty(ids)) {
+      return null;
+    }
+    List<Pattern> patterns = new ArrayList<Pattern>();
+    for (String id : ids.trim().split("\\s*,\\s*")) {
+      id = MultipartIndex.normalizeContentId(id);
+      if (id.equals("")) {
+        throw new IllegalStateException("specify valid attachment-ids.");
+      }
+      StringBuilder regex = new StringBuilder();
+      int literalStart = 0;
+      for (int i = 0; i < id.length(); i++) {
+        char c = id.charAt(i);
+        if (c == '*' || c == '?') {
+          if (literalStart < i) {
+            regex.append(Pattern.quote(id.substring(literalStart, i)));
+          }
+          regex.append((c == '*') ? ".*" : ".");
+          literalStart = i + 1;
+        }
+      }
+      if (literalStart < id.length()) {
+        regex.append(Pattern.quote(id.substring(literalStart)));
+      }
+      patterns.add(Pattern.compile(regex.toString(), Pattern.DOTALL));
+    }
+    return Collections.unmodifiableList(patterns);
+  }
+
+  // A comma-separated list of attachment numbers, from 1; null if there is none.
+  private static Set<Integer> parseAttachmentIndexes(String indexes) {
+    if (isEmpty(indexes)) {
+      return null;
+    }
+    Set<Integer> numbers = new HashSet<Integer>();
+    try {
+      for (String number : indexes.trim().split("\\s*,\\s*")) {
+        int n = Integer.parseInt(number);
+        if (n < 1) {
+          throw new IllegalStateException("specify valid attachment-indexes.");
+        }
+        numbers.add(n);
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException("specify valid attachment-indexes.");
+    }
+    return Collections.unmodifiableSet(numbers);
+  }
+
+  // A limit is a non-negative number; -1 if there is none.
+  private static int parseLimit(String name, String limit) {
+    if (isEmpty(limit)) {
+      return -1;
+    }
+    try {
+      int n = Integer.parseInt(limit);
+      if (n >= 0) {
+        return n;
+      }
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    throw new IllegalStateException(String.format("specify a valid %s.", name));
+  }
+
+  private ContentLengthMode getContentLengthMode(MessageContext msgCtxt) throws Exception {
+    return contentLengthMode.get(msgCtxt);
+  }
+
+  private boolean getPretty(MessageContext msgCtxt) throws Exception {
+    return pretty.get(msgCtxt);
+  }
+
+  private boolean getCheckXml(MessageContext msgCtxt) throws Exception {
+    return checkXml.get(msgCtxt);
+  }
+
+  private boolean getStoreTransformed(MessageContext msgCtxt) throws Exception {
+    return storeTransformed.get(msgCtxt);
+  }
+
+  // The charset named by a part's content-type, if Java supports it; otherwise UTF-8.
+  // MediaType takes only multipart types, so the parameters are parsed directly.
+  private static String xmlEncoding(String ctype) {
+    try {
+      String charset = MultipartInput.parseParams(ctype).get("charset");
+      if (charset != null && Charset.isSupported(charset)) {
+        return charset;
+      }
+    } catch (IllegalArgumentException e) {
+      // a malformed content-type or charset name; fall through
+    }
+    return "UTF-8";
+  }
+
   private static String unquote(String s) {
     int L = s.length();
     if (L >= 2 && s.charAt(0) == '"' && s.charAt(L - 1) == '"') {
@@ -109,24 +332,22 @@ public class XopHandler extends CalloutBase implements Execution {
     return s;
   }
 
-  private List<String> getList(MessageContext msgCtxt, String property, List<String> defaultValue) {
-    String ctypes = this.properties.get(property);
-    if (ctypes != null) ctypes = ctypes.trim();
-    if (ctypes == null || ctypes.equals("")) {
+  private static List<String> parseList(String ctypes, List<String> defaultValue) {
+    if (ctypes == null) {
       return defaultValue;
     }
-    ctypes = resolveVariableReferences(ctypes, msgCtxt);
-    return Arrays.asList(ctypes.split("\\s*,\\s*")).stream()
-        .map(XopHandler::unquote)
-        .collect(Collectors.toList());
+    return Collections.unmodifiableList(
+        Arrays.asList(ctypes.split("\\s*,\\s*")).stream()
+            .map(XopHandler::unquote)
+            .collect(Collectors.toList()));
   }
 
   private List<String> getAcceptablePart1ContentTypes(MessageContext msgCtxt) {
-    return getList(msgCtxt, "part1-ctypes", DEFAULT_PART1_CTYPES);
+    return part1Ctypes.get(msgCtxt);
   }
 
   private List<String> getAcceptableAttachmentContentTypes(MessageContext msgCtxt) {
-    return getList(msgCtxt, "part2-ctypes", DEFAULT_PART2_CTYPES);
+    return part2Ctypes.get(msgCtxt);
   }
 
   public String getVarnamePrefix() {
@@ -134,11 +355,7 @@ public class XopHandler extends CalloutBase implements Execution {
   }
 
   private String getSource(MessageContext msgCtxt) throws Exception {
-    String source = getSimpleOptionalProperty("source", msgCtxt);
-    if (source == null) {
-      source = "message";
-    }
-    return source;
+    return source.get(msgCtxt);
   }
 
   private static void remove(Node currentNode) {
@@ -154,7 +371,12 @@ public class XopHandler extends CalloutBase implements Execution {
   }
 
   private static boolean acceptableCtype(List<String> acceptableList, String ctype) {
-    return acceptableList.stream().anyMatch(s -> ctype.startsWith(s));
+    for (int i = 0; i < acceptableList.size(); i++) {
+      if (ctype.startsWith(acceptableList.get(i))) {
+        return true;
+      }
+    }
+    return false;
   }
 
   // private static boolean acceptableAttachmentContentType(String ctype) {
@@ -171,83 +393,156 @@ public class XopHandler extends CalloutBase implements Execution {
   //       || ctype.startsWith("text/xml");
   // }
 
+  // Checks the content-type of an attachment part, and returns its Content-ID
+  // without the angle brackets.
+  private static String attachmentContentId(
+      MultipartIndex index, int i, List<String> acceptableAttachmentContentTypes) {
+    int p = i + 1;
+    PartInput attachmentPart = index.getPart(i);
+    String ctype = attachmentPart.getContentType();
+    if (ctype == null) {
+      throw new IllegalStateException(String.format("no content-type found for part #%d", p));
+    }
+
+    if (!acceptableCtype(acceptableAttachmentContentTypes, ctype)) {
+      throw new IllegalStateException(
+          String.format("unexpected content-type for part #%d (%s)", p, ctype));
+    }
+
+    final String partContentIdHeader = attachmentPart.getHeaderField("Content-ID");
+    if (partContentIdHeader == null) {
+      throw new IllegalStateException(String.format("missing Content-ID for part #%d", p));
+    }
+    // extract the string enclosed in angle brackets
+    Matcher m = contentIdPattern.matcher(partContentIdHeader.trim());
+    if (!m.matches()) {
+      throw new IllegalStateException(String.format("malformed Content-ID for part #%d", p));
+    }
+    return m.group(1);
+  }
+
+  // The size of the XML with the attachments embedded: the root part, plus the base64 encoding
+  // of each attachment, after checking it. The sum is a long, since it exceeds an int for
+  // attachments over about 1.5 GB.
+  private static int embeddedSize(
+      MultipartIndex index, int root, List<String> acceptableAttachmentContentTypes) {
+    long size = index.getBodyLength(root) + 1024L;
+    for (int i = 0; i < index.size(); i++) {
+      if (i == root) continue;
+      attachmentContentId(index, i, acceptableAttachmentContentTypes);
+      size += 4L * ((index.getBodyLength(i) + 2) / 3);
+    }
+    return (int) Math.min(Integer.MAX_VALUE - 8, size);
+  }
+
   // xmlns:xop='http://www.w3.org/2004/08/xop/include'
   // <xop:Include href="cid:uuid-here"/>
 
-  private static String embedAttachments(
-      Document document, MultipartInput mpi, List<String> acceptableAttachmentContentTypes)
+  private static void embedAttachments(
+      ByteBuffer rootXml,
+      MultipartIndex index,
+      int root,
+      List<String> acceptableAttachmentContentTypes,
+      Metrics metrics,
+      OutputStream out)
       throws Exception {
+    StreamingXopEmbedder embedder = new StreamingXopEmbedder(rootXml);
+    metrics.lap("xml_parse");
 
-    // prepare to get the list of xop:Include elements in the document
-    final XPathEvaluator xpe = new XPathEvaluator();
-    xpe.registerNamespace("xop", "http://www.w3.org/2004/08/xop/include");
+    // Match up the include elements with the attachment parts, as the DOM version does.
+    // Every part other than the root is an attachment.
+    for (int i = 0; i < index.size(); i++) {
+      if (i == root) continue;
+      String contentId = attachmentContentId(index, i, acceptableAttachmentContentTypes);
 
-    Function<String, Element> findIncludeElement =
-        (contentId) -> {
-          try {
-            final String desiredHref = "cid:" + contentId;
-
-            // find the matching element
-            final String xpath = String.format("//xop:Include[@href='%s']", desiredHref);
-            NodeList includes = (NodeList) xpe.evaluate(xpath, document, XPathConstants.NODESET);
-            if (includes.getLength() == 0) {
-              return null;
-            }
-            if (includes.getLength() != 1) {
-              throw new IllegalStateException(
-                  String.format(
-                      "multiple matching xop:Include elements in the XML document (href='%s')",
-                      desiredHref));
-            }
-            return (Element) includes.item(0);
-
-          } catch (Exception e) {
-            throw new RuntimeException(e);
-          }
-        };
-
-    // Match up the include elements with the streams for the attachment parts.
-    // Traverse the attachment streams in order.
-    int p = 1;
-    for (PartInput attachmentPart; (attachmentPart = mpi.nextPart()) != null; ) {
-      p++;
-      // get the InputStream for the the attachment here
-      String ctype = attachmentPart.getContentType();
-      if (ctype == null) {
-        throw new IllegalStateException(String.format("no content-type found for part #%d", p));
+      // find the unique matching xop:Include element for this part
+      String href = "cid:" + contentId;
+      if (embedder.count(href) == 0) {
+        // Now, re-try with url-encoded value.
+        href = "cid:" + URLEncoder.encode(contentId, StandardCharsets.UTF_8.name());
+        if (embedder.count(href) == 0) {
+          throw new IllegalStateException(
+              String.format(
+                  "no matching xop:Include element in the XML document (href='cid:%s')",
+                  contentId));
+        }
       }
-
-      if (!acceptableCtype(acceptableAttachmentContentTypes, ctype)) {
+      if (embedder.count(href) != 1) {
         throw new IllegalStateException(
-            String.format("unexpected content-type for part #%d (%s)", p, ctype));
+            String.format(
+                "multiple matching xop:Include elements in the XML document (href='%s')", href));
       }
-
-      final String partContentIdHeader = attachmentPart.getHeaderField("Content-ID");
-      if (partContentIdHeader == null) {
-        throw new IllegalStateException(String.format("missing Content-ID for part #%d", p));
+      if (!embedder.isSoleChild(href)) {
+        throw new IllegalStateException(
+            "the xop:Include element is not the sole child of its parent");
       }
+      embedder.embed(href, index.getBody(i));
+    }
+    metrics.lap("transform");
+    // the attachments are encoded as the XML is written
+    embedder.write(out);
+    metrics.lap("serialize");
+  }
 
-      // extract the string enclosed in angle brackets
-      Matcher m = contentIdPattern.matcher(partContentIdHeader.trim());
-      if (!m.matches()) {
-        throw new IllegalStateException(String.format("malformed Content-ID for part #%d", p));
+  private static void embedAttachments(
+      Document document,
+      MultipartIndex index,
+      int root,
+      List<String> acceptableAttachmentContentTypes,
+      boolean pretty,
+      Metrics metrics,
+      OutputStream out)
+      throws Exception {
+
+    // Index the xop:Include elements by the Content-ID in their href, in one pass.
+    // An href that is not a cid: URL can't match any attachment.
+    Map<String, List<Element>> includes = new HashMap<String, List<Element>>();
+    NodeList includeElements =
+        document.getElementsByTagNameNS(StreamingXopEmbedder.XOP_NS, "Include");
+    for (int ix = 0; ix < includeElements.getLength(); ix++) {
+      Element include = (Element) includeElements.item(ix);
+      Attr href = include.getAttributeNodeNS(null, "href");
+      if (href != null && href.getValue().startsWith("cid:")) {
+        includes
+            .computeIfAbsent(href.getValue().substring(4), k -> new ArrayList<Element>(1))
+            .add(include);
       }
+    }
+
+    // Each attachment is marked by a processing instruction, replaced by its base64
+    // encoding as the document is written. The target is unique to this call, so
+    // that it can't clash with instructions in the document itself.
+    final String placeholderTarget = "xop-attachment-" + UUID.randomUUID();
+    Map<String, ByteBuffer> attachments = new HashMap<String, ByteBuffer>();
+
+    // Match up the include elements with the attachment parts.
+    // Every part other than the root is an attachment.
+    for (int i = 0; i < index.size(); i++) {
+      if (i == root) continue;
+      String contentId = attachmentContentId(index, i, acceptableAttachmentContentTypes);
 
       // find the unique matching xop:Include element for this part
-      String contentId = m.group(1);
-      Element includeElement = findIncludeElement.apply(contentId);
-      if (includeElement == null) {
+      String hrefContentId = contentId;
+      List<Element> matches = includes.get(hrefContentId);
+      if (matches == null) {
         // Now, re-try with url-encoded value.
-        // There is no "encode-for-uri" function in xpath 1.0, so we need to evaluate twice.
-        String urlEncodedContentId = URLEncoder.encode(contentId, StandardCharsets.UTF_8.name());
-        includeElement = findIncludeElement.apply(urlEncodedContentId);
-        if (includeElement == null) {
+        hrefContentId = URLEncoder.encode(contentId, StandardCharsets.UTF_8.name());
+        matches = includes.get(hrefContentId);
+        if (matches == null) {
           throw new IllegalStateException(
               String.format(
                   "no matching xop:Include element in the XML document (href='cid:%s')",
                   contentId));
         }
       }
+      if (matches.size() != 1) {
+        throw new IllegalStateException(
+            String.format(
+                "multiple matching xop:Include elements in the XML document (href='cid:%s')",
+                hrefContentId));
+      }
+      // the element is replaced below, so it can't match another part
+      Element includeElement = includes.remove(hrefContentId).get(0);
 
       Node parent = includeElement.getParentNode();
       NodeList children = parent.getChildNodes();
@@ -262,57 +557,99 @@ public class XopHandler extends CalloutBase implements Execution {
         parent.removeChild(child);
       }
 
-      Node newNode =
-          document.createTextNode(
-              b64Encoder.encodeToString(IOUtil.readAllBytes(attachmentPart.getInputStream())));
-
-      parent.appendChild(newNode);
+      String key = String.valueOf(i);
+      attachments.put(key, index.getBody(i));
+      parent.appendChild(document.createProcessingInstruction(placeholderTarget, key));
     }
-    return XmlUtils.toString(document, true);
+    metrics.lap("transform");
+    // the attachments are encoded as the document is written
+    XmlUtils.write(document, pretty, "UTF-8", out, placeholderTarget, attachments);
+    metrics.lap("serialize");
   }
 
   private void extractAttachments(
-      Document document, MultipartInput mpi, List<String> acceptableAttachmentContentTypes, MessageContext msgCtxt)
+      MultipartIndex index,
+      int root,
+      List<String> acceptableAttachmentContentTypes,
+      boolean spilled,
+      MessageContext msgCtxt)
       throws Exception {
 
-    // Traverse the attachment streams in order.
-    int p = 1;
-    for (PartInput attachmentPart; (attachmentPart = mpi.nextPart()) != null; ) {
-      p++;
-      // get the InputStream for the the attachment here
-      String ctype = attachmentPart.getContentType();
-      if (ctype == null) {
-        throw new IllegalStateException(String.format("no content-type found for part #%d", p));
-      }
+    // Every part other than the root is an attachment. When attachments are selected, by
+    // Content-ID or by number, the others are passed over: they are not checked, copied or stored.
+    boolean copy = attachmentContent.get(msgCtxt) == AttachmentContent.BYTES;
+    if (!copy && spilled) {
+      throw new IllegalStateException(
+          "attachment-content buffer can't share content spilled to a file");
+    }
+    List<Pattern> ids = attachmentIds.get(msgCtxt);
+    Set<Integer> numbers = attachmentIndexes.get(msgCtxt);
+    int lastNumber = (ids == null && numbers != null) ? Collections.max(numbers) : Integer.MAX_VALUE;
+    int number = 0;
+    int n = 0;
+    for (int i = 0; i < index.size() && number < lastNumber; i++) {
+      if (i == root) continue;
+      number++;
+      if (!isSelected(selectableContentId(index, i), number, ids, numbers)) continue;
+      n++;
+      String contentId = attachmentContentId(index, i, acceptableAttachmentContentTypes);
+      String nameForVar = String.format("attachment_%d_content", n);
+      msgCtxt.setVariable(varName(nameForVar + "_id"), contentId);
+      // set byte array, or a read-only view of the message content, into variable
+      ByteBuffer body = index.getBody(i);
+      msgCtxt.setVariable(varName(nameForVar), copy ? IOUtil.toByteArray(body) : body);
+    }
+    msgCtxt.setVariable(varName("attachment_count"), String.valueOf(n));
+  }
 
-      if (!acceptableCtype(acceptableAttachmentContentTypes, ctype)) {
-        throw new IllegalStateException(
-            String.format("unexpected content-type for part #%d (%s)", p, ctype));
+  // The Content-ID of a part as attachmentContentId reads it, but without checking the part.
+  private static String selectableContentId(MultipartIndex index, int i) {
+    String contentId = index.getContentId(i);
+    if (contentId != null) {
+      Matcher m = contentIdPattern.matcher(contentId);
+      if (m.matches()) {
+        return m.group(1);
       }
+    }
+    return contentId;
+  }
 
-      final String partContentIdHeader = attachmentPart.getHeaderField("Content-ID");
-      if (partContentIdHeader == null) {
-        throw new IllegalStateException(String.format("missing Content-ID for part #%d", p));
-      }
-      // extract the string enclosed in angle brackets
-      Matcher m = contentIdPattern.matcher(partContentIdHeader.trim());
-      if (!m.matches()) {
-        throw new IllegalStateException(String.format("malformed Content-ID for part #%d", p));
+  private static boolean isSelected(
+      String contentId, int number, List<Pattern> ids, Set<Integer> numbers) {
+    if (ids == null && numbers == null) {
+      return true;
+    }
+    if (numbers != null && numbers.contains(number)) {
+      return true;
+    }
+    if (ids != null && contentId != null) {
+      for (Pattern id : ids) {
+        if (id.matcher(contentId).matches()) {
+          return true;
+        }
       }
-      // find the unique matching xop:Include element for this part
-      String contentId = m.group(1);
-      String nameForVar = String.format("attachment_%d_content", p-1);
-      msgCtxt.setVariable(varName(nameForVar + "_id"), contentId);
-      // set byte array into variable
-      msgCtxt.setVariable(
-            varName(nameForVar), IOUtil.readAllBytes(attachmentPart.getInputStream()));
     }
-    msgCtxt.setVariable(varName("attachment_count"), String.valueOf(p-1));
+    return false;
   }
 
-  private static String removeUsernameToken(InputStream in1) throws Exception {
-    Document document = XmlUtils.parseXml(in1);
+  private static final String SOAP_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+  private static final String WSSE_NS =
+      "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd";
+  private static final QName[] USERNAME_TOKEN_PATH = {
+    new QName(SOAP_NS, "Envelope"),
+    new QName(SOAP_NS, "Header"),
+    new QName(WSSE_NS, "Security"),
+    new QName(WSSE_NS, "UsernameToken")
+  };
+  private static final QName[] SOAP_BODY_PATH = {
+    new QName(SOAP_NS, "Envelope"), new QName(SOAP_NS, "Body")
+  };
+  private static final StreamingElementRemover usernameTokenRemover =
+      new StreamingElementRemover(USERNAME_TOKEN_PATH);
+  private static final SplicingElementRemover usernameTokenSplicer =
+      new SplicingElementRemover(USERNAME_TOKEN_PATH);
 
+  private static void removeUsernameToken(Document document) throws Exception {
     XPathEvaluator xpe = new XPathEvaluator();
     xpe.registerNamespace("soap", "http://schemas.xmlsoap.org/soap/envelope/");
     xpe.registerNamespace(
@@ -323,35 +660,107 @@ public class XopHandler extends CalloutBase implements Execution {
     if (nodes.getLength() == 1) {
       remove(nodes.item(0));
     }
-    return XmlUtils.toString(document, true);
+  }
+
+  // Reads the content of the message, or no more of it than max-message-bytes allows, into
+  // memory or, beyond spill-threshold, into a file. The limits on parts and headers are checked
+  // here, as the content is read, so that reading stops at the first part that breaks one; the
+  // index is then built without checking them again.
+  private MessageContent readContent(
+      Message message, MediaType mediaType, MessageContext msgCtxt) throws IOException {
+    int max = maxMessageBytes.get(msgCtxt);
+    int threshold = spillThreshold.get(msgCtxt);
+    InputStream in = message.getContentAsStream();
+    int partsLimit = maxParts.get(msgCtxt);
+    int partLimit = maxPartBytes.get(msgCtxt);
+    int headerLimit = maxHeaderBytes.get(msgCtxt);
+    if (partsLimit >= 0 || partLimit >= 0 || headerLimit >= 0) {
+      in = new MultipartLimitInputStream(in, mediaType, partsLimit, partLimit, headerLimit);
+    }
+    // Without max-message-bytes, the content is still limited to what a buffer can hold. Either
+    // way, the content is read one byte past the limit, so that a longer message fails rather
+    // than being cut short.
+    int limit = (max < 0) ? MessageContent.MAX_LENGTH : max;
+    String tooLong =
+        (max < 0)
+            ? String.format("the message is longer than the most that can be read (%d)", limit)
+            : String.format("the message is longer than max-message-bytes (%d)", max);
+    // when the message says how long it is, an oversize message is not read at all
+    String contentLength = message.getHeader("content-length");
+    if (contentLength != null) {
+      try {
+        if (Long.parseLong(contentLength.trim()) > limit) {
+          throw new IllegalStateException(tooLong);
+        }
+      } catch (NumberFormatException e) {
+        // the length is checked as the content is read
+      }
+    }
+    MessageContent content = MessageContent.read(in, threshold, limit);
+    if (content.getBuffer().remaining() > limit) {
+      content.close();
+      throw new IllegalStateException(tooLong);
+    }
+    return content;
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    MultipartInput mpi = null;
+    MessageContent messageContent = null;
+    Metrics metrics = Metrics.DISABLED;
     try {
+      if (publishMetrics.get(msgCtxt)) {
+        metrics = Metrics.start();
+      }
       String source = getSource(msgCtxt);
       Message message = (Message) msgCtxt.getVariable(source);
       if (message == null) {
         throw new IllegalStateException("source message is null.");
       }
       String originalContentType = message.getHeader("content-type");
-      MultipartInput mpi = new MultipartInput(message.getContentAsStream(), originalContentType);
-
-      Map<String, String> params = MultipartInput.parseParams(originalContentType);
-      if (params.get("boundary") == null) {
+      // Parse the content-type once; the limit checks, the parser and the output share the
+      // result.
+      MediaType mediaType = MediaType.parse(originalContentType);
+      if (mediaType.getBoundary() == null) {
         throw new IllegalStateException("no boundary found");
       }
+      // Read the content once; the parts are then read-only slices of this buffer.
+      messageContent = readContent(message, mediaType, msgCtxt);
+      ByteBuffer content = messageContent.getBuffer();
+      metrics.lap("read");
+      metrics.set("bytes_in", content.remaining());
+      mpi = parserPool.acquire(content, mediaType);
 
       XopAction calloutAction = getAction(msgCtxt);
       msgCtxt.setVariable(varName("action"), calloutAction.name().toLowerCase());
 
+      // Index all parts in one pass. The root part is the one named by the start
+      // parameter, or the first part; all others are attachments.
+      // The limits on parts and headers were checked as the content was read.
+      mpi.setContentLengthMode(getContentLengthMode(msgCtxt));
+      MultipartIndex index = mpi.index();
+      metrics.lap("multipart_parse");
+      if (metrics.isEnabled()) {
+        int largest = 0;
+        for (int i = 0; i < index.size(); i++) {
+          largest = Math.max(largest, index.getBodyLength(i));
+        }
+        metrics.set("part_count", index.size());
+        metrics.set("largest_part_bytes", largest);
+      }
+      int root = index.getRoot();
+      if (root < 0) {
+        throw new IllegalStateException("no parts found");
+      }
+
       List<String> acceptablePart1ContentTypes = getAcceptablePart1ContentTypes(msgCtxt);
 
       if (calloutAction == XopAction.EDIT_1) {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        MultipartOutput mpo = new MultipartOutput(out, originalContentType, params.get("boundary"));
+        MultipartOutput mpo = new MultipartOutput(out, originalContentType, mediaType.getBoundary());
 
         // 1. extract and transform the XML here
-        PartInput partInput1 = mpi.nextPart();
+        PartInput partInput1 = index.getPart(root);
         String ctype1 = partInput1.getContentType();
         if (ctype1 == null) {
           throw new IllegalStateException("no content-type found (part1)");
@@ -360,18 +769,58 @@ public class XopHandler extends CalloutBase implements Execution {
           throw new IllegalStateException(
               String.format("unexpected content-type for part #1 (%s)", ctype1));
         }
-        InputStream in1 = partInput1.getInputStream();
-        String transformedXml = removeUsernameToken(in1);
-        msgCtxt.setVariable(varName("transformed"), transformedXml);
-
+        // write the XML straight into the new part
         PartOutput partOutput1 = mpo.newPart();
         for (String headerName : partInput1.getHeaderNames()) {
           partOutput1.setHeaderField(headerName, partInput1.getHeaderField(headerName));
         }
-        partOutput1.getOutputStream().write(transformedXml.getBytes(StandardCharsets.UTF_8));
+        XmlEngine xmlEngine = getXmlEngine(msgCtxt);
+        // the part keeps its headers, so the XML is encoded as they declare
+        String encoding = xmlEncoding(ctype1);
+        if (xmlEngine == XmlEngine.SPLICE) {
+          usernameTokenSplicer.write(index.getBody(root), encoding, partOutput1.getOutputStream());
+          metrics.lap("transform");
+        } else if (xmlEngine == XmlEngine.STAX) {
+          usernameTokenRemover.write(index.getBody(root), encoding, partOutput1.getOutputStream());
+          metrics.lap("transform");
+        } else {
+          // the hybrid engine parses all but the content of the Body, which it copies as is
+          PartialDocument partial =
+              (xmlEngine == XmlEngine.HYBRID)
+                  ? PartialDocument.parse(index.getBody(root), encoding, SOAP_BODY_PATH)
+                  : null;
+          Document document =
+              (partial != null)
+                  ? partial.getDocument()
+                  : XmlUtils.parseXml(partInput1.getInputStream());
+          metrics.lap("xml_parse");
+          removeUsernameToken(document);
+          metrics.lap("transform");
+          OutputStream out1 = partOutput1.getOutputStream();
+          IOUtil.OutputBuffer transformed = null;
+          if (getStoreTransformed(msgCtxt)) {
+            transformed = new IOUtil.OutputBuffer(index.getBodyLength(root) + 1024);
+            out1 = transformed;
+          }
+          if (partial != null) {
+            // never indented, so that the content of the Body stays as it was
+            partial.write(out1);
+          } else {
+            XmlUtils.write(document, getPretty(msgCtxt), encoding, out1);
+          }
+          if (transformed != null) {
+            msgCtxt.setVariable(varName("transformed"), transformed.toString(encoding));
+            transformed.writeTo(partOutput1.getOutputStream());
+          }
+          metrics.lap("serialize");
+        }
 
         // 2. extract the attachment here
-        PartInput partInput2 = mpi.nextPart();
+        int attachment = (root == 0) ? 1 : 0;
+        if (attachment >= index.size()) {
+          throw new IllegalStateException("no attachment found (part2)");
+        }
+        PartInput partInput2 = index.getPart(attachment);
         String ctype2 = partInput2.getContentType();
         if (ctype2 == null) {
           throw new IllegalStateException("no content-type found (part2)");
@@ -386,18 +835,20 @@ public class XopHandler extends CalloutBase implements Execution {
         for (String headerName : partInput2.getHeaderNames()) {
           partOutput2.setHeaderField(headerName, partInput2.getHeaderField(headerName));
         }
-        IOUtil.copy(partInput2.getInputStream(), partOutput2.getOutputStream());
+        IOUtil.copy(index.getBody(attachment), partOutput2.getOutputStream());
 
         // 3. concatenate the result and replace
         mpo.close();
         message.setContent(new ByteArrayInputStream(out.toByteArray()));
+        metrics.lap("output");
+        metrics.set("bytes_out", out.size());
 
         return ExecutionResult.SUCCESS;
       }
 
       if (calloutAction == XopAction.TRANSFORM_TO_EMBEDDED) {
         // 1. get the Document for the XML here
-        PartInput partInput1 = mpi.nextPart();
+        PartInput partInput1 = index.getPart(root);
         String ctype1 = partInput1.getContentType();
         if (ctype1 == null) {
           throw new IllegalStateException("no content-type found (part1)");
@@ -406,22 +857,47 @@ public class XopHandler extends CalloutBase implements Execution {
           throw new IllegalStateException(
               String.format("unexpected content-type for part #1 (%s)", ctype1));
         }
-        Document document = XmlUtils.parseXml(partInput1.getInputStream());
-
-        // 2. embed the encoded attachments into the XML
-        String resultXml =
-            embedAttachments(document, mpi, getAcceptableAttachmentContentTypes(msgCtxt));
+        // Splicing leaves the bytes of the XML as they are, but the attachments can only be
+        // embedded by rewriting it, in UTF-8 and without its declaration or DOCTYPE.
+        XmlEngine xmlEngine = getXmlEngine(msgCtxt);
+        if (xmlEngine == XmlEngine.SPLICE) {
+          throw new IllegalStateException(
+              "xml-engine splice does not apply to transform_to_embedded");
+        }
+        // 2. embed the encoded attachments into the XML, writing their base64
+        // encoding straight to the output, which is sized once the attachments are checked
+        List<String> acceptableAttachmentContentTypes =
+            getAcceptableAttachmentContentTypes(msgCtxt);
+        IOUtil.OutputBuffer out =
+            new IOUtil.OutputBuffer(embeddedSize(index, root, acceptableAttachmentContentTypes));
+        if (xmlEngine == XmlEngine.STAX) {
+          embedAttachments(
+              index.getBody(root), index, root, acceptableAttachmentContentTypes, metrics, out);
+        } else {
+          Document document = XmlUtils.parseXml(partInput1.getInputStream());
+          metrics.lap("xml_parse");
+          embedAttachments(
+              document,
+              index,
+              root,
+              acceptableAttachmentContentTypes,
+              getPretty(msgCtxt),
+              metrics,
+              out);
+        }
 
         // 3. set the result as the response stream
-        message.setContent(new ByteArrayInputStream(resultXml.getBytes()));
+        message.setContent(out.toInputStream());
         message.setHeader("content-type", "text/xml");
+        metrics.lap("output");
+        metrics.set("bytes_out", out.size());
 
         return ExecutionResult.SUCCESS;
       }
 
       if (calloutAction == XopAction.EXTRACT_SOAP) {
         // 1. extract the XML here
-        PartInput partInput1 = mpi.nextPart();
+        PartInput partInput1 = index.getPart(root);
         String ctype1 = partInput1.getContentType();
         if (ctype1 == null) {
           throw new IllegalStateException("no content-type found (part1)");
@@ -430,10 +906,28 @@ public class XopHandler extends CalloutBase implements Execution {
           throw new IllegalStateException(
               String.format("unexpected content-type for part #1 (%s)", ctype1));
         }
-        InputStream in1 = partInput1.getInputStream();
-        String xmlContent = new String(IOUtil.readAllBytes(in1), StandardCharsets.UTF_8);
-        msgCtxt.setVariable(varName("extracted_xml"), xmlContent);
-        extractAttachments(XmlUtils.parseXml(xmlContent), mpi, getAcceptableAttachmentContentTypes(msgCtxt), msgCtxt);
+        // The XML is decoded straight from the content, in the charset the part declares.
+        // It is parsed only to check it, when asked for.
+        ByteBuffer rootXml = index.getBody(root);
+        String encoding = xmlEncoding(ctype1);
+        if (getCheckXml(msgCtxt)) {
+          try {
+            XmlUtils.parseXml(IOUtil.asInputStream(rootXml), encoding);
+          } catch (SAXException e) {
+            throw new IllegalStateException(
+                String.format("the root part is not well-formed XML (%s)", e.getMessage()), e);
+          }
+          metrics.lap("xml_parse");
+        }
+        msgCtxt.setVariable(
+            varName("extracted_xml"), IOUtil.toString(rootXml, Charset.forName(encoding)));
+        extractAttachments(
+            index,
+            root,
+            getAcceptableAttachmentContentTypes(msgCtxt),
+            messageContent.isSpilled(),
+            msgCtxt);
+        metrics.lap("output");
         return ExecutionResult.SUCCESS;
       }
 
@@ -449,6 +943,14 @@ public class XopHandler extends CalloutBase implements Execution {
       }
       setExceptionVariables(e, msgCtxt);
       return ExecutionResult.ABORT;
+    } finally {
+      parserPool.release(mpi);
+      if (messageContent != null) {
+        messageContent.close();
+      }
+      for (Map.Entry<String, Long> entry : metrics.values().entrySet()) {
+        msgCtxt.setVariable(varName("metrics_" + entry.getKey()), String.valueOf(entry.getValue()));
+      }
     }
   }
 }
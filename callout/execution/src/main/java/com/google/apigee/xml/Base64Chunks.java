@@ -0,0 +1,51 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Encodes a buffer as base64 in chunks of CHUNK_BYTES input bytes, so that the encoding is never
+ * held in memory as a whole.
+ */
+final class Base64Chunks {
+  // a multiple of 3, so that the chunks encode without padding
+  private static final int CHUNK_BYTES = 3 * 1024;
+  private static final Base64.Encoder b64Encoder = Base64.getEncoder();
+
+  interface Sink<E extends Exception> {
+    void write(char[] chars, int length) throws E;
+  }
+
+  private Base64Chunks() {}
+
+  static <E extends Exception> void encode(ByteBuffer buffer, Sink<E> sink) throws E {
+    ByteBuffer src = buffer.duplicate();
+    byte[] in = new byte[Math.min(CHUNK_BYTES, src.remaining())];
+    byte[] out = new byte[4 * ((in.length + 2) / 3)];
+    char[] chars = new char[out.length];
+    while (src.hasRemaining()) {
+      int n = Math.min(in.length, src.remaining());
+      src.get(in, 0, n);
+      int len = b64Encoder.encode((n == in.length) ? in : Arrays.copyOf(in, n), out);
+      for (int i = 0; i < len; i++) {
+        chars[i] = (char) out[i];
+      }
+      sink.write(chars, len);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Passes SAX events through to a serializer, replacing each placeholder processing instruction
+ * with the base64 encoding of a buffer, written in chunks by {@link Base64Chunks}.
+ */
+class Base64Splicer implements ContentHandler, LexicalHandler {
+  private final ContentHandler content;
+  private final LexicalHandler lexical;
+  private final String target;
+  private final Map<String, ByteBuffer> buffers;
+
+  <T extends ContentHandler & LexicalHandler> Base64Splicer(
+      T handler, String target, Map<String, ByteBuffer> buffers) {
+    this.content = handler;
+    this.lexical = handler;
+    this.target = target;
+    this.buffers = buffers;
+  }
+
+  @Override
+  public void processingInstruction(String target, String data) throws SAXException {
+    ByteBuffer buffer = this.target.equals(target) ? buffers.get(data) : null;
+    if (buffer != null) {
+      Base64Chunks.encode(buffer, (chars, length) -> content.characters(chars, 0, length));
+    } else {
+      content.processingInstruction(target, data);
+    }
+  }
+
+  @Override
+  public void setDocumentLocator(Locator locator) {
+    content.setDocumentLocator(locator);
+  }
+
+  @Override
+  public void startDocument() throws SAXException {
+    content.startDocument();
+  }
+
+  @Override
+  public void endDocument() throws SAXException {
+    content.endDocument();
+  }
+
+  @Override
+  public void startPrefixMapping(String prefix, String uri) throws SAXException {
+    content.startPrefixMapping(prefix, uri);
+  }
+
+  @Override
+  public void endPrefixMapping(String prefix) throws SAXException {
+    content.endPrefixMapping(prefix);
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes atts)
+      throws SAXException {
+    content.startElement(uri, localName, qName, atts);
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName) throws SAXException {
+    content.endElement(uri, localName, qName);
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length) throws SAXException {
+    content.characters(ch, start, length);
+  }
+
+  @Override
+  public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+    content.ignorableWhitespace(ch, start, length);
+  }
+
+  @Override
+  public void skippedEntity(String name) throws SAXException {
+    content.skippedEntity(name);
+  }
+
+  @Override
+  public void startDTD(String name, String publicId, String systemId) throws SAXException {
+    lexical.startDTD(name, publicId, systemId);
+  }
+
+  @Override
+  public void endDTD() throws SAXException {
+    lexical.endDTD();
+  }
+
+  @Override
+  public void startEntity(String name) throws SAXException {
+    lexical.startEntity(name);
+  }
+
+  @Override
+  public void endEntity(String name) throws SAXException {
+    lexical.endEntity(name);
+  }
+
+  @Override
+  public void startCDATA() throws SAXException {
+    lexical.startCDATA();
+  }
+
+  @Override
+  public void endCDATA() throws SAXException {
+    lexical.endCDATA();
+  }
+
+  @Override
+  public void comment(char[] ch, int start, int length) throws SAXException {
+    lexical.comment(ch, start, length);
+  }
+}
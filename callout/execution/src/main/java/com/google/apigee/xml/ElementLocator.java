@@ -0,0 +1,506 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.namespace.QName;
+
+/**
+ * Finds the element at an absolute path in the raw bytes of an XML document.
+ *
+ * <p>A single pass of a small tokenizer finds the element, tracking the namespace declarations in
+ * scope so that prefixes are resolved as a parser would. Nothing is parsed into objects. The
+ * tokenizer handles encodings in which markup is ASCII, such as UTF-8 and ISO-8859-1; see {@link
+ * #isAsciiCompatible(ByteBuffer)}. It rejects the structural errors it meets, such as mismatched
+ * tags, but it is not a validating parser.
+ */
+final class ElementLocator {
+  private static final byte[] XMLNS = ascii("xmlns");
+  private static final byte[] COMMENT = ascii("<!--");
+  private static final byte[] COMMENT_END = ascii("-->");
+  private static final byte[] CDATA = ascii("<![CDATA[");
+  private static final byte[] CDATA_END = ascii("]]>");
+  private static final byte[] PI_END = ascii("?>");
+  private static final Pattern DECLARED_ENCODING =
+      Pattern.compile("<\\?xml\\s[^>]*?\\bencoding\\s*=\\s*([\"'])([A-Za-z][A-Za-z0-9._-]*)\\1");
+
+  /** Where an element lies in the document, as absolute positions in the buffer. */
+  static final class Match {
+    /** The start of the whitespace just before the element, back to the previous markup. */
+    int whitespaceStart;
+    /** The start of the start tag. */
+    int start;
+    /** The end of the start tag. */
+    int contentStart;
+    /** The start of the end tag; for an empty-element tag, the same as contentStart. */
+    int contentEnd;
+    /** The end of the end tag. */
+    int end;
+    /** Whether the document has a DOCTYPE or other declaration. */
+    boolean doctype;
+  }
+
+  private final byte[][] localNames;
+  private final byte[][] namespaces;
+
+  /** @param path the names of the elements from the document element down to the one found. */
+  ElementLocator(QName... path) {
+    this.localNames = new byte[path.length][];
+    this.namespaces = new byte[path.length][];
+    for (int i = 0; i < path.length; i++) {
+      localNames[i] = path[i].getLocalPart().getBytes(StandardCharsets.UTF_8);
+      namespaces[i] = path[i].getNamespaceURI().getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Returns the element at the path, or null if the path does not select exactly one element.
+   *
+   * @throws IllegalStateException if the document is not well-formed.
+   */
+  Match find(ByteBuffer xml) {
+    return new Scanner(xml).find();
+  }
+
+  /**
+   * Whether the document has a DOCTYPE. A DOCTYPE can only come before the document element, so
+   * only the prolog is read.
+   */
+  boolean hasDoctype(ByteBuffer xml) {
+    return new Scanner(xml).prologHasDoctype();
+  }
+
+  /**
+   * Returns the encoding named by the XML declaration of a document in an ASCII-compatible
+   * encoding, or null if there is no declaration or it names no encoding.
+   */
+  static String declaredEncoding(ByteBuffer xml) {
+    // a declaration is short, and in ASCII
+    byte[] head = new byte[Math.min(xml.remaining(), 1024)];
+    xml.duplicate().get(head);
+    int from = 0;
+    if (head.length >= 3
+        && head[0] == (byte) 0xef
+        && head[1] == (byte) 0xbb
+        && head[2] == (byte) 0xbf) {
+      // the UTF-8 byte order mark
+      from = 3;
+    }
+    String prolog = new String(head, from, head.length - from, StandardCharsets.ISO_8859_1);
+    int declarationEnd = prolog.indexOf("?>");
+    if (declarationEnd < 0) {
+      return null;
+    }
+    Matcher matcher = DECLARED_ENCODING.matcher(prolog.substring(0, declarationEnd));
+    return matcher.lookingAt() ? matcher.group(2) : null;
+  }
+
+  /** Whether the document starts the way a document in an ASCII-compatible encoding does. */
+  static boolean isAsciiCompatible(ByteBuffer xml) {
+    int p = xml.position();
+    if (xml.limit() - p < 2) {
+      return true;
+    }
+    int b0 = xml.get(p) & 0xff;
+    int b1 = xml.get(p + 1) & 0xff;
+    // UTF-16 and UTF-32 byte order marks, or a '<' encoded in 16 bits
+    return !((b0 == 0xfe && b1 == 0xff)
+        || (b0 == 0xff && b1 == 0xfe)
+        || b0 == 0
+        || (b0 == '<' && b1 == 0)
+        || b0 == 0x4c); // '<' in EBCDIC
+  }
+
+  private static boolean isWhitespace(int b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  private final class Scanner {
+    private final ByteBuffer xml;
+    private final int end;
+    private int p;
+
+    // the open elements: start and end of each name, and how many bindings each declared
+    private int[] names = new int[32];
+    private int[] bindingCounts = new int[16];
+    private int depth;
+    private int matched;
+
+    // the namespace bindings in scope: prefix (null for the default namespace) and URI
+    private final List<byte[]> prefixes = new ArrayList<byte[]>();
+    private final List<byte[]> uris = new ArrayList<byte[]>();
+
+    private int count;
+    private boolean doctype;
+    private Match match;
+    // the depth of the open element matched, or 0
+    private int matchDepth;
+
+    Scanner(ByteBuffer xml) {
+      this.xml = xml;
+      this.p = xml.position();
+      this.end = xml.limit();
+    }
+
+    // Returns the element, or null if there isn't exactly one element at the path.
+    Match find() {
+      int textStart = p;
+      while (p < end) {
+        if (xml.get(p) != '<') {
+          p++;
+          continue;
+        }
+        if (startsWith(COMMENT)) {
+          p = indexOf(COMMENT_END, p + COMMENT.length) + COMMENT_END.length;
+        } else if (startsWith(CDATA)) {
+          p = indexOf(CDATA_END, p + CDATA.length) + CDATA_END.length;
+        } else if (at(p + 1) == '?') {
+          p = indexOf(PI_END, p + 2) + PI_END.length;
+        } else if (at(p + 1) == '!') {
+          doctype = true;
+          skipDeclaration();
+        } else if (at(p + 1) == '/') {
+          endTag();
+        } else {
+          startTag(textStart);
+        }
+        textStart = p;
+      }
+      if (depth != 0) {
+        throw malformed("unclosed element");
+      }
+      if (count != 1) {
+        return null;
+      }
+      match.doctype = doctype;
+      return match;
+    }
+
+    // Reads up to the document element, and returns whether a declaration comes before it.
+    boolean prologHasDoctype() {
+      while (p < end) {
+        if (xml.get(p) != '<') {
+          p++;
+        } else if (startsWith(COMMENT)) {
+          p = indexOf(COMMENT_END, p + COMMENT.length) + COMMENT_END.length;
+        } else if (at(p + 1) == '?') {
+          p = indexOf(PI_END, p + 2) + PI_END.length;
+        } else {
+          return at(p + 1) == '!';
+        }
+      }
+      return false;
+    }
+
+    private void startTag(int textStart) {
+      int tagStart = p;
+      int nameStart = ++p;
+      skipName();
+      int nameEnd = p;
+      if (nameEnd == nameStart) {
+        throw malformed("missing element name");
+      }
+      int bindings = 0;
+      boolean empty = false;
+      while (true) {
+        skipWhitespace();
+        int b = at(p);
+        if (b == '>') {
+          p++;
+          break;
+        }
+        if (b == '/') {
+          if (at(p + 1) != '>') {
+            throw malformed("expected '>'");
+          }
+          p += 2;
+          empty = true;
+          break;
+        }
+        int attStart = p;
+        skipName();
+        int attEnd = p;
+        if (attEnd == attStart) {
+          throw malformed("bad attribute");
+        }
+        skipWhitespace();
+        if (at(p) != '=') {
+          throw malformed("expected '='");
+        }
+        p++;
+        skipWhitespace();
+        int quote = at(p);
+        if (quote != '"' && quote != '\'') {
+          throw malformed("expected a quoted value");
+        }
+        int valueStart = ++p;
+        while (p < end && xml.get(p) != quote) {
+          p++;
+        }
+        if (p == end) {
+          throw malformed("unterminated attribute value");
+        }
+        int valueEnd = p++;
+        if (regionEquals(attStart, attEnd - attStart, XMLNS)) {
+          prefixes.add(null);
+          uris.add(decode(valueStart, valueEnd));
+          bindings++;
+        } else if (attEnd - attStart > XMLNS.length + 1
+            && regionEquals(attStart, XMLNS.length, XMLNS)
+            && xml.get(attStart + XMLNS.length) == ':') {
+          prefixes.add(copy(attStart + XMLNS.length + 1, attEnd));
+          uris.add(decode(valueStart, valueEnd));
+          bindings++;
+        }
+      }
+
+      push(nameStart, nameEnd, bindings);
+      if (matched == depth - 1
+          && matched < localNames.length
+          && nameMatches(nameStart, nameEnd, matched)) {
+        matched++;
+        if (matched == localNames.length) {
+          count++;
+          match = new Match();
+          match.whitespaceStart = isBlank(textStart, tagStart) ? textStart : tagStart;
+          match.start = tagStart;
+          match.contentStart = p;
+          matchDepth = depth;
+          if (empty) {
+            match.contentEnd = p;
+            match.end = p;
+          }
+        }
+      }
+      if (empty) {
+        pop();
+      }
+    }
+
+    private void endTag() {
+      int tagStart = p;
+      int nameStart = p + 2;
+      p = nameStart;
+      skipName();
+      int nameEnd = p;
+      skipWhitespace();
+      if (at(p) != '>') {
+        throw malformed("expected '>'");
+      }
+      p++;
+      if (depth == 0) {
+        throw malformed("unexpected end tag");
+      }
+      int openStart = names[2 * (depth - 1)];
+      int openLength = names[2 * (depth - 1) + 1] - openStart;
+      if (nameEnd - nameStart != openLength || !regionsEqual(nameStart, openStart, openLength)) {
+        throw malformed("mismatched end tag");
+      }
+      if (depth == matchDepth) {
+        match.contentEnd = tagStart;
+        match.end = p;
+      }
+      pop();
+    }
+
+    private void push(int nameStart, int nameEnd, int bindings) {
+      if (2 * depth == names.length) {
+        names = Arrays.copyOf(names, names.length * 2);
+        bindingCounts = Arrays.copyOf(bindingCounts, bindingCounts.length * 2);
+      }
+      names[2 * depth] = nameStart;
+      names[2 * depth + 1] = nameEnd;
+      bindingCounts[depth] = bindings;
+      depth++;
+    }
+
+    private void pop() {
+      depth--;
+      for (int i = bindingCounts[depth]; i > 0; i--) {
+        prefixes.remove(prefixes.size() - 1);
+        uris.remove(uris.size() - 1);
+      }
+      if (matched > depth) {
+        matched = depth;
+      }
+      if (matchDepth > depth) {
+        matchDepth = 0;
+      }
+    }
+
+    // Whether the element name, resolved against the bindings in scope, is path element i.
+    private boolean nameMatches(int nameStart, int nameEnd, int i) {
+      int colon = nameStart;
+      while (colon < nameEnd && xml.get(colon) != ':') {
+        colon++;
+      }
+      int localStart = (colon < nameEnd) ? colon + 1 : nameStart;
+      if (nameEnd - localStart != localNames[i].length
+          || !regionEquals(localStart, localNames[i].length, localNames[i])) {
+        return false;
+      }
+      byte[] uri = null;
+      for (int j = prefixes.size() - 1; j >= 0; j--) {
+        byte[] prefix = prefixes.get(j);
+        boolean same =
+            (colon < nameEnd)
+                ? prefix != null
+                    && prefix.length == colon - nameStart
+                    && regionEquals(nameStart, prefix.length, prefix)
+                : prefix == null;
+        if (same) {
+          uri = uris.get(j);
+          break;
+        }
+      }
+      if (uri == null) {
+        if (colon < nameEnd) {
+          throw malformed("unbound namespace prefix");
+        }
+        uri = new byte[0];
+      }
+      return Arrays.equals(uri, namespaces[i]);
+    }
+
+    // Skips a DOCTYPE or other declaration, including an internal subset.
+    private void skipDeclaration() {
+      int brackets = 0;
+      int quote = 0;
+      for (p += 2; p < end; p++) {
+        int b = xml.get(p);
+        if (quote != 0) {
+          if (b == quote) {
+            quote = 0;
+          }
+        } else if (b == '"' || b == '\'') {
+          quote = b;
+        } else if (b == '[') {
+          brackets++;
+        } else if (b == ']') {
+          brackets--;
+        } else if (b == '>' && brackets == 0) {
+          p++;
+          return;
+        }
+      }
+      throw malformed("unterminated declaration");
+    }
+
+    private void skipName() {
+      while (p < end) {
+        int b = xml.get(p);
+        if (isWhitespace(b) || b == '/' || b == '>' || b == '=') {
+          return;
+        }
+        p++;
+      }
+    }
+
+    private void skipWhitespace() {
+      while (p < end && isWhitespace(xml.get(p))) {
+        p++;
+      }
+    }
+
+    private boolean isBlank(int from, int to) {
+      for (int i = from; i < to; i++) {
+        if (!isWhitespace(xml.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private int at(int i) {
+      return (i < end) ? xml.get(i) : -1;
+    }
+
+    private boolean startsWith(byte[] s) {
+      return end - p >= s.length && regionEquals(p, s.length, s);
+    }
+
+    private int indexOf(byte[] s, int from) {
+      for (int i = from; i <= end - s.length; i++) {
+        if (regionEquals(i, s.length, s)) {
+          return i;
+        }
+      }
+      throw malformed("unterminated markup");
+    }
+
+    private boolean regionEquals(int start, int length, byte[] s) {
+      if (length != s.length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (xml.get(start + i) != s[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean regionsEqual(int a, int b, int length) {
+      for (int i = 0; i < length; i++) {
+        if (xml.get(a + i) != xml.get(b + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private byte[] copy(int from, int to) {
+      byte[] b = new byte[to - from];
+      for (int i = from; i < to; i++) {
+        b[i - from] = xml.get(i);
+      }
+      return b;
+    }
+
+    // Returns the bytes of an attribute value, with the predefined entities replaced.
+    private byte[] decode(int from, int to) {
+      byte[] raw = copy(from, to);
+      for (byte b : raw) {
+        if (b == '&') {
+          String s = new String(raw, StandardCharsets.UTF_8);
+          s =
+              s.replace("&lt;", "<")
+                  .replace("&gt;", ">")
+                  .replace("&quot;", "\"")
+                  .replace("&apos;", "'")
+                  .replace("&amp;", "&");
+          return s.getBytes(StandardCharsets.UTF_8);
+        }
+      }
+      return raw;
+    }
+
+    private IllegalStateException malformed(String problem) {
+      return new IllegalStateException(
+          String.format(
+              "the XML is not well-formed (%s at byte %d)", problem, p - xml.position()));
+    }
+  }
+}
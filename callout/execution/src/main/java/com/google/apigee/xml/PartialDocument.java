@@ -0,0 +1,165 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import com.google.apigee.IOUtil;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * An XML document of which only part is parsed into a DOM.
+ *
+ * <p>The content of one element, such as the soap:Body of an envelope, is set aside as opaque
+ * bytes, and the rest of the document is parsed. The DOM holds that element, empty, so that the
+ * rest of the document can be read and changed as usual. When the document is written, the
+ * content is written back into the element byte for byte. Memory use then depends on the size of
+ * the rest of the document, not on the size of the content set aside.
+ */
+public class PartialDocument {
+  private final Document document;
+  private final ByteBuffer content;
+  private final Charset charset;
+  private final String placeholderTarget;
+
+  private PartialDocument(
+      Document document, ByteBuffer content, Charset charset, String placeholderTarget) {
+    this.document = document;
+    this.content = content;
+    this.charset = charset;
+    this.placeholderTarget = placeholderTarget;
+  }
+
+  /**
+   * Parses the document, setting aside the content of the element at the path.
+   *
+   * @param xml the document; it is read, but not modified.
+   * @param encoding the encoding of the document, as declared outside it.
+   * @param path the names of the elements from the document element down to the one whose content
+   *     is set aside.
+   * @return the document, or null if its content can't be set aside: if the path does not select
+   *     exactly one element, if the document has a DOCTYPE, whose entities the content might use,
+   *     if the encoding is not ASCII-compatible, or if the XML declaration names another encoding.
+   */
+  public static PartialDocument parse(ByteBuffer xml, String encoding, QName... path)
+      throws IOException, SAXException, ParserConfigurationException {
+    Charset charset = Charset.forName(encoding);
+    if (!ElementLocator.isAsciiCompatible(xml)
+        || !Arrays.equals("<?".getBytes(charset), "<?".getBytes(StandardCharsets.US_ASCII))) {
+      return null;
+    }
+    // The content is written back as it is, among the rest of the document written in the given
+    // encoding, so a document that says it is in another one is left to a full parse.
+    String declared = ElementLocator.declaredEncoding(xml);
+    if (declared != null
+        && !(Charset.isSupported(declared) && Charset.forName(declared).equals(charset))) {
+      return null;
+    }
+    ElementLocator.Match match = new ElementLocator(path).find(xml);
+    if (match == null || match.doctype) {
+      return null;
+    }
+
+    ByteBuffer before = xml.duplicate();
+    before.limit(match.contentStart);
+    ByteBuffer content = xml.duplicate();
+    content.position(match.contentStart).limit(match.contentEnd);
+    ByteBuffer after = xml.duplicate();
+    after.position(match.contentEnd);
+    Document document =
+        XmlUtils.parseXml(
+            new SequenceInputStream(IOUtil.asInputStream(before), IOUtil.asInputStream(after)),
+            encoding);
+
+    // mark the place of the content, with a target that can't clash with the document's own
+    String placeholderTarget = "xop-content-" + UUID.randomUUID();
+    Node element = document.getDocumentElement();
+    for (int i = 1; i < path.length; i++) {
+      element = childElement(element, path[i]);
+    }
+    element.appendChild(document.createProcessingInstruction(placeholderTarget, ""));
+    return new PartialDocument(document, content.slice(), charset, placeholderTarget);
+  }
+
+  private static Node childElement(Node parent, QName name) {
+    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child.getNodeType() == Node.ELEMENT_NODE
+          && name.getLocalPart().equals(child.getLocalName())
+          && name.getNamespaceURI().equals(nullToEmpty(child.getNamespaceURI()))) {
+        return child;
+      }
+    }
+    throw new IllegalStateException("no " + name + " element");
+  }
+
+  private static String nullToEmpty(String s) {
+    return (s == null) ? "" : s;
+  }
+
+  /**
+   * Returns the DOM of the document, in which the element whose content was set aside holds a
+   * processing instruction in place of the content. Changes to the DOM are written by {@link
+   * #write(OutputStream)}; the processing instruction must be left in place.
+   */
+  public Document getDocument() {
+    return document;
+  }
+
+  /**
+   * Writes the document to the stream, in the encoding it was parsed with and without an XML
+   * declaration. The content set aside is written as it was. The document is not indented, since
+   * indenting would add whitespace around the content, which is then no longer as it was.
+   */
+  public void write(OutputStream out) throws IOException, TransformerException {
+    // The DOM is small, so it is serialized to memory, and the content is spliced in.
+    IOUtil.OutputBuffer serialized = new IOUtil.OutputBuffer(1024);
+    XmlUtils.write(document, false, charset.name(), serialized);
+    byte[] bytes = serialized.toByteArray();
+    byte[] marker = ("<?" + placeholderTarget).getBytes(StandardCharsets.US_ASCII);
+    int start = indexOf(bytes, marker);
+    int end = indexOf(bytes, "?>".getBytes(StandardCharsets.US_ASCII), start) + 2;
+    out.write(bytes, 0, start);
+    IOUtil.copy(content, out);
+    out.write(bytes, end, bytes.length - end);
+  }
+
+  private static int indexOf(byte[] bytes, byte[] s) {
+    return indexOf(bytes, s, 0);
+  }
+
+  private static int indexOf(byte[] bytes, byte[] s, int from) {
+    outer:
+    for (int i = from; i <= bytes.length - s.length; i++) {
+      for (int j = 0; j < s.length; j++) {
+        if (bytes[i + j] != s[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    throw new IllegalStateException("the placeholder for the content was not written");
+  }
+}
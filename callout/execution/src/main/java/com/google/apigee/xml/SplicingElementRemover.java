@@ -0,0 +1,83 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import com.google.apigee.IOUtil;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import javax.xml.namespace.QName;
+
+/**
+ * Removes the element at an absolute path from an XML document by cutting its bytes out, leaving
+ * every other byte of the document as it was.
+ *
+ * <p>The element is found by a single pass of a small tokenizer over the raw bytes, which tracks
+ * the namespace declarations in scope, so that prefixes are resolved as a parser would. As with
+ * {@link StreamingElementRemover}, the element is removed only if the path selects exactly one
+ * element, and whitespace just before it, back to the previous markup, is removed too. Nothing is
+ * parsed into objects and nothing is re-serialized, so signatures over other parts of the document
+ * stay valid.
+ *
+ * <p>The tokenizer handles encodings in which markup is ASCII, such as UTF-8 and ISO-8859-1, and
+ * does not read a DTD, whose default attributes and entities could change what the path selects.
+ * Documents in other encodings, such as UTF-16, and documents with a DOCTYPE are handed to {@link
+ * StreamingElementRemover}.
+ */
+public class SplicingElementRemover {
+  private final ElementLocator locator;
+  private final StreamingElementRemover fallback;
+
+  /** @param path the names of the elements from the document element down to the one removed. */
+  public SplicingElementRemover(QName... path) {
+    this.locator = new ElementLocator(path);
+    this.fallback = new StreamingElementRemover(path);
+  }
+
+  /**
+   * Writes the document to the stream, leaving out the element at the path if there is exactly
+   * one. A document handed to {@link StreamingElementRemover} is written as UTF-8.
+   *
+   * @return true if the element was removed.
+   */
+  public boolean write(ByteBuffer xml, OutputStream out) throws Exception {
+    return write(xml, "UTF-8", out);
+  }
+
+  /**
+   * Writes the document to the stream, leaving out the element at the path if there is exactly
+   * one. A document handed to {@link StreamingElementRemover} is written in the named encoding,
+   * which should be the one the document is labelled with where it is kept, such as the charset of
+   * a MIME part; a spliced document keeps the bytes, and so the encoding, it came with.
+   *
+   * @return true if the element was removed.
+   */
+  public boolean write(ByteBuffer xml, String encoding, OutputStream out) throws Exception {
+    if (!ElementLocator.isAsciiCompatible(xml) || locator.hasDoctype(xml)) {
+      return fallback.write(xml, encoding, out);
+    }
+    ElementLocator.Match match = locator.find(xml);
+    if (match == null) {
+      IOUtil.copy(xml, out);
+      return false;
+    }
+    ByteBuffer src = xml.duplicate();
+    src.limit(match.whitespaceStart);
+    IOUtil.copy(src, out);
+    src = xml.duplicate();
+    src.position(match.end);
+    IOUtil.copy(src, out);
+    return true;
+  }
+}
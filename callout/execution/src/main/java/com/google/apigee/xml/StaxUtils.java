@@ -0,0 +1,151 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import com.google.apigee.IOUtil;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/** Reading XML from a buffer, and copying it to a stream, with StAX. */
+final class StaxUtils {
+
+  // Once configured, the factories are safe to share between threads.
+  private static final XMLInputFactory inputFactory = newInputFactory();
+  private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+  private StaxUtils() {}
+
+  private static XMLInputFactory newInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    // prevent external DTDs from being resolved.
+    factory.setXMLResolver(
+        (publicId, systemId, baseUri, namespace) -> new ByteArrayInputStream(new byte[0]));
+    return factory;
+  }
+
+  static XMLStreamReader newReader(ByteBuffer xml) throws XMLStreamException {
+    return inputFactory.createXMLStreamReader(IOUtil.asInputStream(xml));
+  }
+
+  /** Returns a writer that encodes as UTF-8. It does not write an XML declaration by itself. */
+  static XMLStreamWriter newWriter(OutputStream out) throws XMLStreamException {
+    return newWriter(out, "UTF-8");
+  }
+
+  /**
+   * Returns a writer that encodes in the named encoding, writing characters the encoding cannot
+   * represent as character references. It does not write an XML declaration by itself.
+   */
+  static XMLStreamWriter newWriter(OutputStream out, String encoding) throws XMLStreamException {
+    return outputFactory.createXMLStreamWriter(out, encoding);
+  }
+
+  /**
+   * Writes the current event of the reader. The document start and end, and the DTD, are not
+   * written.
+   */
+  static void copyEvent(XMLStreamReader reader, XMLStreamWriter writer)
+      throws XMLStreamException {
+    switch (reader.getEventType()) {
+      case XMLStreamConstants.START_ELEMENT:
+        writeStartElement(reader, writer);
+        break;
+      case XMLStreamConstants.END_ELEMENT:
+        writer.writeEndElement();
+        break;
+      case XMLStreamConstants.CHARACTERS:
+      case XMLStreamConstants.SPACE:
+        writer.writeCharacters(
+            reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+        break;
+      case XMLStreamConstants.CDATA:
+        writer.writeCData(reader.getText());
+        break;
+      case XMLStreamConstants.COMMENT:
+        writer.writeComment(reader.getText());
+        break;
+      case XMLStreamConstants.PROCESSING_INSTRUCTION:
+        if (reader.getPIData() == null) {
+          writer.writeProcessingInstruction(reader.getPITarget());
+        } else {
+          writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+        }
+        break;
+      case XMLStreamConstants.ENTITY_REFERENCE:
+        writer.writeEntityRef(reader.getLocalName());
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static void writeStartElement(XMLStreamReader reader, XMLStreamWriter writer)
+      throws XMLStreamException {
+    String prefix = reader.getPrefix();
+    String ns = reader.getNamespaceURI();
+    writer.writeStartElement(
+        (prefix == null) ? "" : prefix, reader.getLocalName(), (ns == null) ? "" : ns);
+    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+      String nsPrefix = reader.getNamespacePrefix(i);
+      String nsUri = reader.getNamespaceURI(i);
+      if (nsPrefix == null || nsPrefix.isEmpty()) {
+        writer.writeDefaultNamespace((nsUri == null) ? "" : nsUri);
+      } else {
+        writer.writeNamespace(nsPrefix, nsUri);
+      }
+    }
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      String attNs = reader.getAttributeNamespace(i);
+      if (attNs == null || attNs.isEmpty()) {
+        writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+      } else {
+        writer.writeAttribute(
+            reader.getAttributePrefix(i),
+            attNs,
+            reader.getAttributeLocalName(i),
+            reader.getAttributeValue(i));
+      }
+    }
+  }
+
+  /**
+   * Skips the content of the current element, leaving the reader at its end.
+   *
+   * @return the number of elements skipped.
+   */
+  static int skipContent(XMLStreamReader reader) throws XMLStreamException {
+    int skipped = 0;
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        skipped++;
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+    return skipped;
+  }
+}
@@ -0,0 +1,154 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Removes the element at an absolute path from an XML document, using StAX rather than a DOM.
+ *
+ * <p>Like removing the single node selected by an XPath such as /a:x/a:y/b:z, the element is
+ * removed only if the path selects exactly one element, and a whitespace-only text node just
+ * before it is removed too. The document is read twice, as a stream: once to count the matching
+ * elements, and once to copy it to the output. Memory use depends on the depth of the document,
+ * not on its size.
+ */
+public class StreamingElementRemover {
+  private final QName[] path;
+
+  /** @param path the names of the elements from the document element down to the one removed. */
+  public StreamingElementRemover(QName... path) {
+    this.path = path;
+  }
+
+  // Tracks how much of the path the open elements match.
+  private class PathMatcher {
+    private int depth;
+    private int matched;
+
+    // returns true if the element just started is at the end of the path
+    boolean start(XMLStreamReader reader) {
+      if (matched == depth
+          && matched < path.length
+          && path[matched].getLocalPart().equals(reader.getLocalName())
+          && path[matched].getNamespaceURI().equals(nullToEmpty(reader.getNamespaceURI()))) {
+        matched++;
+      }
+      depth++;
+      return matched == path.length && matched == depth;
+    }
+
+    void end() {
+      if (matched == depth) {
+        matched--;
+      }
+      depth--;
+    }
+  }
+
+  private static String nullToEmpty(String s) {
+    return (s == null) ? "" : s;
+  }
+
+  /** Returns the number of elements at the path. */
+  public int count(ByteBuffer xml) throws XMLStreamException {
+    XMLStreamReader reader = StaxUtils.newReader(xml);
+    try {
+      PathMatcher matcher = new PathMatcher();
+      int count = 0;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          if (matcher.start(reader)) {
+            count++;
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          matcher.end();
+        }
+      }
+      return count;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Writes the document to the stream, encoded as UTF-8 and without an XML declaration, leaving
+   * out the element at the path if there is exactly one.
+   *
+   * @return true if the element was removed.
+   */
+  public boolean write(ByteBuffer xml, OutputStream out) throws XMLStreamException {
+    return write(xml, "UTF-8", out);
+  }
+
+  /**
+   * Writes the document to the stream, encoded in the named encoding and without an XML
+   * declaration, leaving out the element at the path if there is exactly one. Pass the encoding
+   * the document is labelled with where it is kept, such as the charset of a MIME part, so that
+   * the label stays true.
+   *
+   * @return true if the element was removed.
+   */
+  public boolean write(ByteBuffer xml, String encoding, OutputStream out)
+      throws XMLStreamException {
+    boolean remove = count(xml) == 1;
+    XMLStreamReader reader = StaxUtils.newReader(xml);
+    XMLStreamWriter writer = StaxUtils.newWriter(out, encoding);
+    try {
+      PathMatcher matcher = new PathMatcher();
+      // whitespace text held back, in case the element to remove follows it
+      StringBuilder whitespace = new StringBuilder();
+      // whether the previous event was text that has been written; text may come in several events
+      boolean inText = false;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        boolean isText =
+            event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE;
+        if (remove && isText && !inText && reader.isWhiteSpace()) {
+          whitespace.append(
+              reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+          continue;
+        }
+        inText = isText;
+        if (event == XMLStreamConstants.START_ELEMENT && matcher.start(reader) && remove) {
+          whitespace.setLength(0);
+          StaxUtils.skipContent(reader);
+          matcher.end();
+          continue;
+        }
+        if (whitespace.length() > 0) {
+          writer.writeCharacters(whitespace.toString());
+          whitespace.setLength(0);
+        }
+        if (event == XMLStreamConstants.END_ELEMENT) {
+          matcher.end();
+        }
+        StaxUtils.copyEvent(reader, writer);
+      }
+      writer.flush();
+      return remove;
+    } finally {
+      writer.close();
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Embeds attachments in place of the xop:Include elements of an XML document, using StAX rather
+ * than a DOM.
+ *
+ * <p>The document is read twice, as a stream. The first pass records the href of each xop:Include
+ * element and whether it is the sole element child of its parent. Attachments are then matched
+ * up with {@link #count(String)} and {@link #embed(String, ByteBuffer)}, and the second pass,
+ * {@link #write(OutputStream)}, copies the document to the output, replacing the content of the
+ * parent of each matched xop:Include with the base64 encoding of the attachment. Memory use
+ * depends on the depth of the document, not on its size or the size of the attachments.
+ */
+public class StreamingXopEmbedder {
+  public static final String XOP_NS = "http://www.w3.org/2004/08/xop/include";
+
+  private static class Include {
+    final int parent;
+    final boolean soleChild;
+
+    Include(int parent, boolean soleChild) {
+      this.parent = parent;
+      this.soleChild = soleChild;
+    }
+  }
+
+  private static class Frame {
+    final int ordinal;
+    int elements;
+    List<String> includes;
+
+    Frame(int ordinal) {
+      this.ordinal = ordinal;
+    }
+  }
+
+  private final ByteBuffer xml;
+  // the xop:Include elements not yet matched, by href
+  private final Map<String, List<Include>> includes = new HashMap<String, List<Include>>();
+  // the attachments to embed, by the ordinal of the element that receives them
+  private final Map<Integer, ByteBuffer> replacements = new HashMap<Integer, ByteBuffer>();
+
+  /**
+   * Scans the document for xop:Include elements.
+   *
+   * @param xml the document; it is read, but not modified.
+   */
+  public StreamingXopEmbedder(ByteBuffer xml) throws XMLStreamException {
+    this.xml = xml;
+    XMLStreamReader reader = StaxUtils.newReader(xml);
+    try {
+      Deque<Frame> stack = new ArrayDeque<Frame>();
+      int ordinal = -1;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          Frame parent = stack.peek();
+          if (parent != null) {
+            parent.elements++;
+            if (XOP_NS.equals(reader.getNamespaceURI()) && "Include".equals(reader.getLocalName())) {
+              if (parent.includes == null) {
+                parent.includes = new ArrayList<String>(1);
+              }
+              parent.includes.add(reader.getAttributeValue(null, "href"));
+            }
+          }
+          stack.push(new Frame(++ordinal));
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          Frame frame = stack.pop();
+          if (frame.includes != null) {
+            for (String href : frame.includes) {
+              includes
+                  .computeIfAbsent(href, k -> new ArrayList<Include>(1))
+                  .add(new Include(frame.ordinal, frame.elements == 1));
+            }
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Returns the number of xop:Include elements with the given href that have not been matched to
+   * an attachment.
+   */
+  public int count(String href) {
+    List<Include> list = includes.get(href);
+    return (list == null) ? 0 : list.size();
+  }
+
+  /**
+   * Returns whether the xop:Include element with the given href is the sole element child of its
+   * parent.
+   */
+  public boolean isSoleChild(String href) {
+    return includes.get(href).get(0).soleChild;
+  }
+
+  /** Matches the xop:Include element with the given href to an attachment. */
+  public void embed(String href, ByteBuffer attachment) {
+    Include include = includes.remove(href).get(0);
+    replacements.put(include.parent, attachment);
+  }
+
+  /**
+   * Writes the document to the stream, encoded as UTF-8, with the attachments embedded. There is
+   * no XML declaration.
+   */
+  public void write(OutputStream out) throws XMLStreamException {
+    XMLStreamReader reader = StaxUtils.newReader(xml);
+    XMLStreamWriter writer = StaxUtils.newWriter(out);
+    try {
+      int ordinal = -1;
+      while (reader.hasNext()) {
+        reader.next();
+        StaxUtils.copyEvent(reader, writer);
+        if (reader.getEventType() == XMLStreamConstants.START_ELEMENT) {
+          ByteBuffer attachment = replacements.get(++ordinal);
+          if (attachment != null) {
+            // the sole child is replaced, and any text or comments around it are dropped
+            ordinal += StaxUtils.skipContent(reader);
+            Base64Chunks.encode(
+                attachment, (chars, length) -> writer.writeCharacters(chars, 0, length));
+            writer.writeEndElement();
+          }
+        }
+      }
+      writer.flush();
+    } finally {
+      writer.close();
+      reader.close();
+    }
+  }
+}
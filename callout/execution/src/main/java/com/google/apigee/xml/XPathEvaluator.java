@@ -17,7 +17,12 @@ package com.google.apigee.xml;
 import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
@@ -50,30 +55,76 @@ import java.util.Hashtable;
  */
 public class XPathEvaluator {
 
+    // XPathFactory is costly to look up, and not thread-safe.
+    private static final ThreadLocal<XPathFactory> xpathFactories = new ThreadLocal<XPathFactory>() {
+        @Override
+        protected XPathFactory initialValue() {
+            return XPathFactory.newInstance();
+        }
+    };
+
+    // Compiled expressions are not thread-safe either, so each thread caches the ones it has
+    // compiled, keyed by the expression and the namespaces registered when it was compiled.
+    private static final int MAX_CACHED_EXPRESSIONS = 64;
+    private static final ThreadLocal<Map<List<Object>, XPathExpression>> expressionCaches =
+        new ThreadLocal<Map<List<Object>, XPathExpression>>() {
+        @Override
+        protected Map<List<Object>, XPathExpression> initialValue() {
+            return new ExpressionCache();
+        }
+    };
+
+    // Access-ordered, so that the least recently used expression is dropped past the limit.
+    private final static class ExpressionCache extends LinkedHashMap<List<Object>, XPathExpression> {
+        private static final long serialVersionUID = 1L;
+
+        ExpressionCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, XPathExpression> eldest) {
+            return size() > MAX_CACHED_EXPRESSIONS;
+        }
+    }
+
+    // created when first needed; evaluating against a Document needs neither
     private Transformer transformer;
     private DocumentBuilder docBuilder;
 
     public XPathEvaluator(){
-        try {
+    }
+
+    private Transformer getTransformer() throws TransformerConfigurationException {
+        if (transformer == null) {
             transformer = TransformerFactory.newInstance().newTransformer();
             transformer.setOutputProperty(OutputKeys.INDENT, "yes");
             transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        } catch (TransformerConfigurationException ex) {
-            ex.printStackTrace();
         }
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            docBuilder = factory.newDocumentBuilder();
-        } catch (ParserConfigurationException ex) {
-            ex.printStackTrace();
+        return transformer;
+    }
+
+    private DocumentBuilder getDocBuilder() throws SAXException {
+        if (docBuilder == null) {
+            try {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setNamespaceAware(true);
+                docBuilder = factory.newDocumentBuilder();
+            } catch (ParserConfigurationException ex) {
+                throw new SAXException(ex);
+            }
         }
+        return docBuilder;
     }
 
     private Hashtable<String, String> prefixi = new Hashtable<String, String> ();
 
+    // a copy of prefixi, taken when an expression is first compiled after a change
+    private Map<String, String> namespaces;
+
     public void registerNamespace(String prefix, String ns) {
         prefixi.put(prefix, ns);
+        namespaces = null;
     }
 
     public String evalXPathToString(String xpath, Document doc) throws SAXException,IOException,TransformerException,XPathExpressionException {
@@ -99,7 +150,7 @@ public class XPathEvaluator {
 
                 if (nodeValue == null) {
                     StringWriter stringWriter = new StringWriter();
-                    transformer.transform(new DOMSource(item), new StreamResult(stringWriter));
+                    getTransformer().transform(new DOMSource(item), new StreamResult(stringWriter));
                     sb.append(stringWriter.toString());
                 } else {
                     sb.append(item.getNodeValue()).append("\n");
@@ -115,7 +166,7 @@ public class XPathEvaluator {
     public Object evaluate(String xpath, String xml, QName ret)
         throws SAXException, IOException, XPathExpressionException {
 
-        Document sourceXML = docBuilder.parse(new InputSource(new CharArrayReader(xml.toCharArray())));
+        Document sourceXML = getDocBuilder().parse(new InputSource(new CharArrayReader(xml.toCharArray())));
 
         //hack; found no way to get it working with default namespaces
         if(sourceXML.lookupNamespaceURI(null) != null) {
@@ -135,17 +186,28 @@ public class XPathEvaluator {
 
     public Object evaluate(String xpath, Document sourceXML, QName ret)
         throws SAXException, IOException, XPathExpressionException {
-        XPathFactory factory = XPathFactory.newInstance();
-        XPath xPath = factory.newXPath();
-        xPath.setNamespaceContext(new CustomNamespaceResolver(prefixi));
-        XPathExpression expr = xPath.compile(xpath);
-        return expr.evaluate(sourceXML, ret);
+        return compile(xpath).evaluate(sourceXML, ret);
     }
 
+    private XPathExpression compile(String xpath) throws XPathExpressionException {
+        if (namespaces == null) {
+            namespaces = new HashMap<String, String>(prefixi);
+        }
+        List<Object> key = Arrays.<Object>asList(xpath, namespaces);
+        Map<List<Object>, XPathExpression> cache = expressionCaches.get();
+        XPathExpression expression = cache.get(key);
+        if (expression == null) {
+            XPath xPath = xpathFactories.get().newXPath();
+            xPath.setNamespaceContext(new CustomNamespaceResolver(namespaces));
+            expression = xPath.compile(xpath);
+            cache.put(key, expression);
+        }
+        return expression;
+    }
 
     private final static class CustomNamespaceResolver implements NamespaceContext {
-        private Hashtable<String,String> prefixes;
-        public CustomNamespaceResolver(Hashtable<String,String> prefixi) {
+        private Map<String,String> prefixes;
+        public CustomNamespaceResolver(Map<String,String> prefixi) {
             prefixes = prefixi;
         }
 
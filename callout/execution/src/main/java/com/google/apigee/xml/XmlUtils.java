@@ -17,8 +17,12 @@ package com.google.apigee.xml;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -27,6 +31,9 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Document;
 import org.xml.sax.EntityResolver;
@@ -35,26 +42,59 @@ import org.xml.sax.SAXException;
 
 public class XmlUtils {
 
-  private static DocumentBuilder getBuilder() throws ParserConfigurationException {
-    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    factory.setNamespaceAware(true);
-    factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
-    factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-
-    DocumentBuilder builder = factory.newDocumentBuilder();
-    // prevent DTD entities from being resolved.
-    builder.setEntityResolver(
-        new EntityResolver() {
-          @Override
-          public InputSource resolveEntity(String publicId, String systemId)
-              throws SAXException, IOException {
-            return new InputSource(new StringReader(""));
-          }
-        });
+  // Looking up and configuring a factory is costly, and factories and the builders and
+  // transformers they make are not thread-safe; so each thread keeps its own, and reuses them.
+  private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+
+  private static final ThreadLocal<SAXTransformerFactory> transformerFactories =
+      new ThreadLocal<SAXTransformerFactory>() {
+        @Override
+        protected SAXTransformerFactory initialValue() {
+          return (SAXTransformerFactory) TransformerFactory.newInstance();
+        }
+      };
+
+  private static final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>();
 
+  // prevent DTD entities from being resolved.
+  private static final EntityResolver noEntities =
+      new EntityResolver() {
+        @Override
+        public InputSource resolveEntity(String publicId, String systemId)
+            throws SAXException, IOException {
+          return new InputSource(new StringReader(""));
+        }
+      };
+
+  // Returns this thread's builder, in the state it was created in.
+  private static DocumentBuilder getBuilder() throws ParserConfigurationException {
+    DocumentBuilder builder = builders.get();
+    if (builder == null) {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(true);
+      factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
+      factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+      builder = factory.newDocumentBuilder();
+      builders.set(builder);
+    } else {
+      builder.reset();
+    }
+    builder.setEntityResolver(noEntities);
     return builder;
   }
 
+  // Returns this thread's identity transformer, with its output properties cleared.
+  private static Transformer getTransformer() throws TransformerException {
+    Transformer transformer = transformers.get();
+    if (transformer == null) {
+      transformer = transformerFactories.get().newTransformer();
+      transformers.set(transformer);
+    } else {
+      transformer.reset();
+    }
+    return transformer;
+  }
+
   public static Document parseXml(InputStream in)
       throws IOException, SAXException, ParserConfigurationException {
     DocumentBuilder builder = getBuilder();
@@ -63,6 +103,18 @@ public class XmlUtils {
     return ret;
   }
 
+  /**
+   * Parses XML in the given encoding, as declared outside the document, for example by a MIME
+   * charset parameter. The declaration overrides any encoding the document itself declares.
+   */
+  public static Document parseXml(InputStream in, String encoding)
+      throws IOException, SAXException, ParserConfigurationException {
+    DocumentBuilder builder = getBuilder();
+    InputSource is = new InputSource(in);
+    is.setEncoding(encoding);
+    return builder.parse(is);
+  }
+
   public static Document parseXml(String s)
       throws IOException, SAXException, ParserConfigurationException {
     DocumentBuilder builder = getBuilder();
@@ -80,11 +132,56 @@ public class XmlUtils {
     DOMSource domSource = new DOMSource(doc);
     StringWriter writer = new StringWriter();
     StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
+    Transformer transformer = getTransformer();
     transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
     if (pretty) transformer.setOutputProperty(OutputKeys.INDENT, "yes");
     transformer.transform(domSource, result);
     return writer.toString();
   }
+
+  public static void write(Document doc, boolean pretty, OutputStream out)
+      throws TransformerException {
+    write(doc, pretty, "UTF-8", out);
+  }
+
+  /**
+   * Serializes the document to the stream, without an XML declaration. Characters the encoding
+   * can't represent are written as character references.
+   */
+  public static void write(Document doc, boolean pretty, String encoding, OutputStream out)
+      throws TransformerException {
+    write(doc, pretty, encoding, out, null, Collections.<String, ByteBuffer>emptyMap());
+  }
+
+  /**
+   * Serializes the document to the stream. Each processing instruction with the given target, and
+   * data that is a key of {@code attachments}, is replaced by the base64 encoding of the
+   * corresponding buffer, written to the stream in chunks.
+   */
+  public static void write(
+      Document doc,
+      boolean pretty,
+      String encoding,
+      OutputStream out,
+      String placeholderTarget,
+      Map<String, ByteBuffer> attachments)
+      throws TransformerException {
+    // a TransformerHandler serves one document only
+    TransformerHandler serializer = transformerFactories.get().newTransformerHandler();
+    Transformer transformer = serializer.getTransformer();
+    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    transformer.setOutputProperty(OutputKeys.ENCODING, encoding);
+    if (pretty) transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+    serializer.setResult(new StreamResult(out));
+    SAXResult result = new SAXResult();
+    if (attachments.isEmpty()) {
+      result.setHandler(serializer);
+      result.setLexicalHandler(serializer);
+    } else {
+      Base64Splicer splicer = new Base64Splicer(serializer, placeholderTarget, attachments);
+      result.setHandler(splicer);
+      result.setLexicalHandler(splicer);
+    }
+    getTransformer().transform(new DOMSource(doc), result);
+  }
 }
@@ -28,11 +28,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.security.DigestInputStream;
@@ -367,6 +369,271 @@ public class TestXopHandler {
             });
   }
 
+  @Test
+  public void editWithStaxEngine() throws Exception {
+    final String boundary = UUID.randomUUID().toString().replaceAll("-", "");
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+    msgCtxt.setVariable(
+        "message.content",
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml"));
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("xml-engine", "stax");
+
+    XopHandler callout = new XopHandler(props);
+
+    // execute and retrieve output
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    String output = msgCtxt.getMessage().getContent();
+    Assert.assertNotNull(output, "no output");
+    Assert.assertFalse(output.contains("UsernameToken"), "UsernameToken removed");
+    Assert.assertTrue(output.contains("wsse:Security"), "Security kept");
+    Assert.assertTrue(output.contains("...binary zip data..."), "attachment kept");
+  }
+
+  // Runs EDIT_1 over msg1 with its XML part encoded as ISO-8859-1, and returns the output decoded
+  // as ISO-8859-1. The part's content-type names partCharset, or no charset if it is null.
+  private String editLatin1(String xmlEngine, String partCharset, String prolog)
+      throws Exception {
+    ExecutionResult actualResult = executeLatin1("EDIT_1", xmlEngine, partCharset, prolog);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+      IOUtil.copy(msgCtxt.getMessage().getContentAsStream(), os);
+      return new String(os.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private ExecutionResult executeLatin1(
+      String action, String xmlEngine, String partCharset, String prolog) throws Exception {
+    final String boundary = UUID.randomUUID().toString().replaceAll("-", "");
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    final String content =
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml")
+            .replace("; charset=UTF-8", (partCharset == null) ? "" : "; charset=" + partCharset)
+            .replace("<S:Envelope", prolog + "<S:Envelope")
+            .replace(">UTC<", ">Z\u00fcrich<");
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+    msgCtxt.setVariable(
+        "message.content",
+        new ByteArrayInputStream(content.getBytes(StandardCharsets.ISO_8859_1)));
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", action);
+    props.put("xml-engine", xmlEngine);
+
+    XopHandler callout = new XopHandler(props);
+    return callout.execute(msgCtxt, exeCtxt);
+  }
+
+  @Test
+  public void editKeepsCharset() throws Exception {
+    String output =
+        editLatin1("dom", "ISO-8859-1", "<?xml version='1.0' encoding='ISO-8859-1'?>\n");
+    Assert.assertFalse(output.contains("UsernameToken"), "UsernameToken removed");
+    Assert.assertTrue(output.contains("charset=ISO-8859-1"), "charset kept");
+    Assert.assertTrue(output.contains(">Z\u00fcrich<"), "encoded as the charset declares");
+    String transformed = (String) msgCtxt.getVariable("xop_transformed");
+    Assert.assertNotNull(transformed, "transformed");
+    Assert.assertTrue(transformed.contains(">Z\u00fcrich<"), "transformed decoded");
+  }
+
+  @Test
+  public void editWithoutStoringTransformed() throws Exception {
+    final String boundary = UUID.randomUUID().toString().replaceAll("-", "");
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+    msgCtxt.setVariable(
+        "message.content",
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml"));
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("store-transformed", "false");
+
+    XopHandler callout = new XopHandler(props);
+
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+    Assert.assertNull(msgCtxt.getVariable("xop_transformed"), "transformed");
+
+    String output = msgCtxt.getMessage().getContent();
+    Assert.assertFalse(output.contains("UsernameToken"), "UsernameToken removed");
+  }
+
+  @Test
+  public void editWithStaxEngineKeepsCharset() throws Exception {
+    String output =
+        editLatin1("stax", "ISO-8859-1", "<?xml version='1.0' encoding='ISO-8859-1'?>\n");
+    Assert.assertFalse(output.contains("UsernameToken"), "UsernameToken removed");
+    Assert.assertTrue(output.contains("charset=ISO-8859-1"), "charset kept");
+    Assert.assertTrue(output.contains(">Z\u00fcrich<"), "encoded as the charset declares");
+  }
+
+  @Test
+  public void editWithSpliceEngine() throws Exception {
+    final String boundary = UUID.randomUUID().toString().replaceAll("-", "");
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    final String content =
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml");
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+    msgCtxt.setVariable("message.content", content);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("xml-engine", "splice");
+
+    XopHandler callout = new XopHandler(props);
+
+    // execute and retrieve output
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    String output = msgCtxt.getMessage().getContent();
+    Assert.assertNotNull(output, "no output");
+    Assert.assertFalse(output.contains("UsernameToken"), "UsernameToken removed");
+
+    // everything but the UsernameToken is left byte for byte
+    String envelope =
+        content.substring(content.indexOf("<S:Envelope"), content.indexOf("</S:Envelope>"));
+    String expected =
+        envelope.substring(0, envelope.indexOf("\n      <wsse:UsernameToken"))
+            + envelope.substring(
+                envelope.indexOf("</wsse:UsernameToken>") + "</wsse:UsernameToken>".length());
+    Assert.assertTrue(output.contains(expected), "untouched bytes kept");
+  }
+
+  @Test
+  public void editWithSpliceEngineAndDoctype() throws Exception {
+    // the splicer does not read a DTD, so the document is streamed instead, in its own charset
+    String output =
+        editLatin1(
+            "splice",
+            "ISO-8859-1",
+            "<?xml version='1.0' encoding='ISO-8859-1'?>\n<!DOCTYPE S:Envelope>\n");
+    Assert.assertFalse(output.contains("UsernameToken"), "UsernameToken removed");
+    Assert.assertFalse(output.contains("<!DOCTYPE"), "streamed");
+    Assert.assertTrue(output.contains("charset=ISO-8859-1"), "charset kept");
+    Assert.assertTrue(output.contains(">Z\u00fcrich<"), "encoded as the charset declares");
+  }
+
+  @Test
+  public void editWithHybridEngine() throws Exception {
+    final String boundary = UUID.randomUUID().toString().replaceAll("-", "");
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    final String content =
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml");
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+    msgCtxt.setVariable("message.content", content);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("xml-engine", "hybrid");
+
+    XopHandler callout = new XopHandler(props);
+
+    // execute and retrieve output
+    ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    String output = msgCtxt.getMessage().getContent();
+    Assert.assertNotNull(output, "no output");
+    Assert.assertFalse(output.contains("UsernameToken"), "UsernameToken removed");
+
+    // the content of the Body is copied, not parsed and written again
+    String body =
+        content.substring(
+            content.indexOf("<S:Body>") + "<S:Body>".length(), content.indexOf("</S:Body>"));
+    Assert.assertTrue(output.contains(body), "Body kept");
+  }
+
+  @Test
+  public void editWithHybridEngineIgnoresPretty() throws Exception {
+    final String boundary = UUID.randomUUID().toString().replaceAll("-", "");
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    final String content =
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml");
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+
+    // the content of the Body is copied as it is, so nothing around it is indented
+    String[] outputs = new String[2];
+    for (int i = 0; i < outputs.length; i++) {
+      msgCtxt.setVariable("message.content", content);
+      Properties props = new Properties();
+      props.put("source", "message");
+      props.put("xml-engine", "hybrid");
+      props.put("pretty", String.valueOf(i == 1));
+
+      ExecutionResult actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+      Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+      outputs[i] = msgCtxt.getMessage().getContent();
+    }
+    Assert.assertEquals(outputs[1], outputs[0], "output with pretty");
+  }
+
+  @Test
+  public void editWithHybridEngineAndDeclaredEncoding() throws Exception {
+    // the part names no charset, so it is written as UTF-8; the content of the Body, in
+    // ISO-8859-1 as the XML declares, can't be copied as it is, and the document is parsed whole
+    String output = editLatin1("hybrid", null, "<?xml version='1.0' encoding='ISO-8859-1'?>\n");
+    String utf8 = new String(output.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+    Assert.assertFalse(utf8.contains("UsernameToken"), "UsernameToken removed");
+    Assert.assertTrue(utf8.contains(">Z\u00fcrich<"), "encoded as UTF-8");
+  }
+
   @Test
   public void withBogusAction() throws Exception {
     final String outerCtypeTemplate =
@@ -459,8 +726,139 @@ public class TestXopHandler {
     Assert.assertNotNull(xmlDoc, "cannot instantiate XML document");
   }
 
+  @Test
+  public void extractWithCheckXml() throws Exception {
+    final String boundary = UUID.randomUUID().toString();
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+    // the root part is cut short, so it is not well-formed
+    final String content =
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml")
+            .replace("</S:Envelope>", "");
+    msgCtxt.setVariable("message.content", content);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "extract_soap");
+
+    // without the check, the XML is extracted as it is
+    ExecutionResult actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+    Assert.assertNotNull(msgCtxt.getVariable("xop_extracted_xml"), "no extracted content");
+
+    // the first run read the content, so it is set again
+    msgCtxt.setVariable("message.content", content);
+    props.put("check-xml", "true");
+    actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+    String error = (String) msgCtxt.getVariable("xop_error");
+    Assert.assertNotNull(error, "error");
+    Assert.assertTrue(
+        error.startsWith("the root part is not well-formed XML ("), "unexpected error: " + error);
+  }
+
+  @Test
+  public void extractWithBufferContent() throws Exception {
+    final String boundary = UUID.randomUUID().toString();
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+    String content =
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml");
+    msgCtxt.setVariable("message.content", content);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "extract_soap");
+    ExecutionResult actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    byte[] copied = msgCtxt.getVariable("xop_attachment_1_content");
+    Assert.assertNotNull(copied, "no attachment");
+
+    props.put("attachment-content", "buffer");
+    msgCtxt.setVariable("message.content", content);
+    actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    ByteBuffer shared = msgCtxt.getVariable("xop_attachment_1_content");
+    Assert.assertTrue(shared.isReadOnly(), "read-only");
+    Assert.assertEquals(IOUtil.toByteArray(shared), copied, "attachment content");
+
+    props.put("attachment-content", "string");
+    msgCtxt.setVariable("message.content", content);
+    actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+    Assert.assertEquals(msgCtxt.getVariable("xop_error"), "specify a valid attachment-content.");
+  }
+
   @Test
   public void withEmbedAction() throws Exception {
+    embedAction(null);
+  }
+
+  @Test
+  public void withEmbedActionStax() throws Exception {
+    embedAction("stax");
+  }
+
+  @Test
+  public void embedWithDeclaredEncoding() throws Exception {
+    embedLatin1("dom");
+  }
+
+  @Test
+  public void embedWithStaxEngineAndDeclaredEncoding() throws Exception {
+    embedLatin1("stax");
+  }
+
+  // The XML is decoded as its declaration says, and written as UTF-8, without the declaration.
+  private void embedLatin1(String xmlEngine) throws Exception {
+    ExecutionResult actualResult =
+        executeLatin1(
+            "TRANSFORM_TO_EMBEDDED",
+            xmlEngine,
+            "ISO-8859-1",
+            "<?xml version='1.0' encoding='ISO-8859-1'?>\n");
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_error"), "error");
+
+    String output = msgCtxt.getMessage().getContent();
+    Assert.assertFalse(output.contains("ISO-8859-1"), "declaration dropped");
+    Assert.assertTrue(output.contains(">Z\u00fcrich<"), "encoded as UTF-8");
+    Document doc = XmlUtils.parseXml(output);
+    NodeList nl = doc.getElementsByTagNameNS("http://www.oracle.com/UCM", "Contents");
+    Assert.assertEquals(nl.getLength(), 1, "Contents element");
+  }
+
+  @Test
+  public void embedWithSpliceEngine() throws Exception {
+    ExecutionResult actualResult =
+        executeLatin1(
+            "TRANSFORM_TO_EMBEDDED",
+            "splice",
+            "ISO-8859-1",
+            "<?xml version='1.0' encoding='ISO-8859-1'?>\n");
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+    Assert.assertEquals(
+        msgCtxt.getVariable("xop_error"),
+        "xml-engine splice does not apply to transform_to_embedded",
+        "error");
+  }
+
+  private void embedAction(String xmlEngine) throws Exception {
     final String outerCtypeTemplate =
         "Multipart/Related; "
             + "boundary=@@MIME_BOUNDARY@@; "
@@ -487,6 +885,9 @@ public class TestXopHandler {
     props.put("source", "message");
     props.put("action", "TRANSFORM_TO_EMBEDDED");
     props.put("debug", "true");
+    if (xmlEngine != null) {
+      props.put("xml-engine", xmlEngine);
+    }
 
     XopHandler callout = new XopHandler(props);
 
@@ -844,6 +1245,248 @@ public class TestXopHandler {
     }
   }
 
+  @Test
+  public void multipleAttachmentsExtractSelected() throws Exception {
+    final String relativeFileName = "acord-example-multiple-pdf.bin";
+    String content;
+
+    try (InputStream input =
+            new FileInputStream(Paths.get(testDataDir, relativeFileName).toFile());
+        InputStreamReader charReader = new InputStreamReader(input);
+        BufferedReader reader = new BufferedReader(charReader)) {
+      String headerLine = reader.readLine().trim();
+
+      Pattern contentTypeHeaderPattern = Pattern.compile("(?i)^content-type *: *(.+)$");
+      Matcher m = contentTypeHeaderPattern.matcher(headerLine);
+      if (!m.matches()) {
+        throw new IllegalStateException("unexpected content-id header in test input");
+      }
+      msgCtxt.setVariable("message.header.content-type", m.group(1).trim());
+      msgCtxt.setVariable("message.header.mime-version", "1.0");
+      content = reader.lines().collect(Collectors.joining(System.lineSeparator())).trim();
+      msgCtxt.setVariable("message.content", content);
+    }
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "extract_soap");
+    props.put("attachment-indexes", "2");
+    ExecutionResult actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertEquals(msgCtxt.getVariable("xop_attachment_count"), "1");
+    Assert.assertEquals(
+        msgCtxt.getVariable("xop_attachment_1_content_id"), "5d314343570@apache.org");
+    Assert.assertNull(msgCtxt.getVariable("xop_attachment_2_content"), "second attachment");
+
+    props.remove("attachment-indexes");
+    props.put("attachment-ids", "<5d31ab1f*>");
+    msgCtxt.setVariable("message.content", content);
+    actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertEquals(msgCtxt.getVariable("xop_attachment_count"), "1");
+    Assert.assertEquals(
+        msgCtxt.getVariable("xop_attachment_1_content_id"),
+        "5d31ab1f59579aad895dc7a32d310@apache.org");
+  }
+
+  @Test
+  public void extractWithLimits() throws Exception {
+    final String boundary = UUID.randomUUID().toString();
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+    String content =
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml");
+    msgCtxt.setVariable("message.content", content);
+    int length = content.getBytes(StandardCharsets.UTF_8).length;
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "extract_soap");
+    props.put("max-message-bytes", String.valueOf(length));
+    props.put("max-parts", "2");
+    ExecutionResult actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+
+    String[][] cases = {
+      {
+        "max-message-bytes",
+        String.valueOf(length - 1),
+        String.format("the message is longer than max-message-bytes (%d)", length - 1)
+      },
+      {"max-parts", "1", "The message has more than the limit of 1 parts"},
+      {"max-part-bytes", "10", "The part is longer than the limit of 10 bytes"},
+      {"max-header-bytes", "10", "The headers of the part are longer than the limit of 10 bytes"},
+      {"max-parts", "two", "specify a valid max-parts."}
+    };
+    for (String[] limit : cases) {
+      Properties limited = new Properties();
+      limited.putAll(props);
+      limited.put(limit[0], limit[1]);
+      msgCtxt.removeVariable("xop_error");
+      msgCtxt.setVariable("message.content", content);
+      actualResult = new XopHandler(limited).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, limit[0]);
+      Assert.assertEquals(msgCtxt.getVariable("xop_error"), limit[2], limit[0]);
+    }
+  }
+
+  @Test
+  public void extractWithLimitsWhileReading() throws Exception {
+    final String boundary = UUID.randomUUID().toString();
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+    byte[] content =
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml")
+            .getBytes(StandardCharsets.UTF_8);
+
+    String[][] cases = {
+      {"max-parts", "1", "The message has more than the limit of 1 parts"},
+      {"max-part-bytes", "10", "The part is longer than the limit of 10 bytes"},
+      {"max-header-bytes", "10", "The headers of the part are longer than the limit of 10 bytes"}
+    };
+    for (String[] limit : cases) {
+      // the message goes on past its content; reading stops at the limit, before that
+      InputStream endless =
+          new InputStream() {
+            @Override
+            public int read() throws IOException {
+              throw new IOException("read past the limit");
+            }
+          };
+      // the content arrives a few bytes at a time, as from a network
+      ByteArrayInputStream head = new ByteArrayInputStream(content);
+      InputStream trickle =
+          new FilterInputStream(head) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+              return super.read(b, off, Math.min(len, 16));
+            }
+          };
+      msgCtxt.removeVariable("xop_error");
+      msgCtxt.setVariable("message.content", new SequenceInputStream(trickle, endless));
+
+      Properties props = new Properties();
+      props.put("source", "message");
+      props.put("action", "extract_soap");
+      props.put(limit[0], limit[1]);
+      ExecutionResult actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, limit[0]);
+      Assert.assertEquals(msgCtxt.getVariable("xop_error"), limit[2], limit[0]);
+      Assert.assertTrue(head.available() > 0, limit[0] + " stopped reading");
+    }
+  }
+
+  @Test
+  public void extractWithSpill() throws Exception {
+    final String boundary = UUID.randomUUID().toString();
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+    String content =
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml");
+    msgCtxt.setVariable("message.content", content);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "extract_soap");
+    ExecutionResult actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    String xml = msgCtxt.getVariable("xop_extracted_xml");
+    byte[] attachment = msgCtxt.getVariable("xop_attachment_1_content");
+
+    // the content is read back from a file
+    props.put("spill-threshold", "16");
+    msgCtxt.setVariable("message.content", content);
+    actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertEquals(msgCtxt.getVariable("xop_extracted_xml"), xml, "extracted xml");
+    Assert.assertEquals(
+        (byte[]) msgCtxt.getVariable("xop_attachment_1_content"), attachment, "attachment");
+
+    // a message longer than the limit fails, rather than being cut short in the file
+    int length = content.getBytes(StandardCharsets.UTF_8).length;
+    Properties limited = new Properties();
+    limited.putAll(props);
+    limited.put("max-message-bytes", String.valueOf(length - 1));
+    msgCtxt.setVariable("message.content", content);
+    actualResult = new XopHandler(limited).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+    Assert.assertEquals(
+        msgCtxt.getVariable("xop_error"),
+        String.format("the message is longer than max-message-bytes (%d)", length - 1),
+        "error");
+
+    // a buffer can't outlive the file
+    msgCtxt.removeVariable("xop_error");
+    props.put("attachment-content", "buffer");
+    msgCtxt.setVariable("message.content", content);
+    actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "ExecutionResult");
+    Assert.assertEquals(
+        msgCtxt.getVariable("xop_error"),
+        "attachment-content buffer can't share content spilled to a file",
+        "error");
+  }
+
+  @Test
+  public void editWithMetrics() throws Exception {
+    final String boundary = UUID.randomUUID().toString();
+    final String contentId1 = String.format("<%s>", UUID.randomUUID().toString());
+    msgCtxt.setVariable("message.header.mime-version", "1.0");
+    msgCtxt.setVariable(
+        "message.header.content-type",
+        String.format(
+            "Multipart/Related; boundary=%s; type='application/soap+xml'; start='%s'",
+            boundary, contentId1));
+    String content =
+        msg1.replaceAll("@@MIME_BOUNDARY@@", boundary)
+            .replaceAll("@@CONTENT_ID_1@@", contentId1)
+            .replaceAll("@@XMLCTYPE@@", "application/soap+xml");
+    msgCtxt.setVariable("message.content", content);
+
+    Properties props = new Properties();
+    props.put("source", "message");
+    props.put("action", "edit_1");
+    ExecutionResult actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertNull(msgCtxt.getVariable("xop_metrics_total_nanos"), "metrics when off");
+
+    props.put("metrics", "true");
+    msgCtxt.setVariable("message.content", content);
+    actualResult = new XopHandler(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "ExecutionResult");
+    Assert.assertEquals(
+        msgCtxt.getVariable("xop_metrics_bytes_in"),
+        String.valueOf(content.getBytes(StandardCharsets.UTF_8).length));
+    Assert.assertEquals(msgCtxt.getVariable("xop_metrics_part_count"), "2");
+    for (String phase :
+        new String[] {"read", "multipart_parse", "xml_parse", "transform", "serialize", "total"}) {
+      String nanos = msgCtxt.getVariable("xop_metrics_" + phase + "_nanos");
+      Assert.assertNotNull(nanos, phase);
+      Assert.assertTrue(Long.parseLong(nanos) >= 0, phase);
+    }
+  }
+
   @Test
   public void multipleAttachmentsExtract() throws Exception {
     final String relativeFileName = "acord-example-multiple-pdf.bin";
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Searches byte arrays for a boundary delimiter ("--" followed by the boundary string)
+ * using the Boyer-Moore-Horspool algorithm.
+ * <p>
+ * The skip table only depends on the boundary, so one instance is created per
+ * multipart message and shared by all of its parts. A reused {@link MultipartInput}
+ * resets its instance for the next message.
+ */
+final class BoundaryFinder {
+
+	private String boundary;
+	private byte[] delimiter;
+	private final int[] skip = new int[256];
+
+	BoundaryFinder(String boundary) {
+		reset(boundary);
+	}
+
+	/**
+	 * Prepare for searching for another boundary.
+	 * @param boundary the boundary, without the leading "--".
+	 */
+	void reset(String boundary) {
+		if (boundary.equals(this.boundary)) {
+			return;
+		}
+		this.boundary = boundary;
+		this.delimiter = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+		int m = delimiter.length;
+		for (int i = 0; i < skip.length; i++) {
+			skip[i] = m;
+		}
+		for (int i = 0; i < m - 1; i++) {
+			skip[delimiter[i] & 0xff] = m - 1 - i;
+		}
+	}
+
+	/**
+	 * Get the delimiter bytes, "--" followed by the boundary.
+	 * The returned array must not be modified.
+	 * @return the delimiter.
+	 */
+	byte[] delimiter() {
+		return delimiter;
+	}
+
+	/**
+	 * Find the first occurrence of the delimiter that lies completely within {@code b[from]} to {@code b[to - 1]}.
+	 * @param b the bytes to search.
+	 * @param from the first index to search.
+	 * @param to the end of the range to search (exclusive).
+	 * @return the index of the first byte of the delimiter, or -1 if not found.
+	 */
+	int indexOf(byte[] b, int from, int to) {
+		int m = delimiter.length;
+		int last = m - 1;
+		int i = from;
+		while (i <= to - m) {
+			int j = last;
+			while (b[i + j] == delimiter[j]) {
+				if (j == 0) {
+					return i;
+				}
+				j--;
+			}
+			i += skip[b[i + last] & 0xff];
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+
+/**
+ * How {@link MultipartInput} uses the Content-Length header of a part.
+ * <p>
+ * Normally the body of a part is scanned for the boundary that ends it. When a
+ * part declares its length, the parser can instead check that the boundary is
+ * where the length says it is, and then pass on the body without scanning it.
+ */
+public enum ContentLengthMode {
+
+	/**
+	 * Ignore Content-Length and always scan for the boundary.
+	 */
+	IGNORE,
+
+	/**
+	 * Use Content-Length when the boundary follows the body where expected,
+	 * otherwise scan for the boundary.
+	 */
+	TRUST,
+
+	/**
+	 * Use Content-Length, and fail with an IOException when the boundary doesn't
+	 * follow the body where expected.
+	 */
+	STRICT
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+
+/**
+ * The headers of one part, kept as byte ranges in a single array.
+ * <p>
+ * The header text is collected the way {@link PartInput} parses it, with tabs and
+ * folded line breaks turned into spaces. Each field is recorded as four offsets
+ * into that text: the start and end of the name and of the (trimmed) value.
+ * Names are compared ignoring ASCII case, and values are decoded to Strings only
+ * when asked for. Values are decoded as UTF-8, or as ISO-8859-1 if they are not
+ * valid UTF-8.
+ * <p>
+ * A name may occur more than once; the last occurrence is the one that counts.
+ */
+final class HeaderFields {
+
+	static final byte[] CONTENT_TYPE = ascii("content-type");
+	static final byte[] CONTENT_ID = ascii("content-id");
+	static final byte[] CONTENT_LENGTH = ascii("content-length");
+	static final byte[] CONTENT_TRANSFER_ENCODING = ascii("content-transfer-encoding");
+
+	private static final int NAME_START = 0;
+	private static final int NAME_END = 1;
+	private static final int VALUE_START = 2;
+	private static final int VALUE_END = 3;
+
+	private byte[] text = new byte[256];
+	private int length;
+	private int[] fields = new int[4 * 8];
+	private int count;
+	private String[] values;
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Append a byte to the header text.
+	 * @param c the byte.
+	 */
+	void append(int c) {
+		if (length == text.length) {
+			text = Arrays.copyOf(text, length * 2);
+		}
+		text[length++] = (byte) c;
+	}
+
+	/**
+	 * Get the current length of the header text, to be used as an offset.
+	 * @return the length.
+	 */
+	int length() {
+		return length;
+	}
+
+	/**
+	 * Record a field. The value is trimmed the same way as {@link String#trim()}.
+	 * @param nameStart the offset of the name.
+	 * @param nameEnd the offset after the name.
+	 * @param valueStart the offset of the value.
+	 * @param valueEnd the offset after the value.
+	 * @return the field number.
+	 */
+	int add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+		while (valueStart < valueEnd && (text[valueStart] & 0xff) <= ' ') {
+			valueStart++;
+		}
+		while (valueEnd > valueStart && (text[valueEnd - 1] & 0xff) <= ' ') {
+			valueEnd--;
+		}
+		if (4 * count == fields.length) {
+			fields = Arrays.copyOf(fields, fields.length * 2);
+		}
+		int f = 4 * count++;
+		fields[f + NAME_START] = nameStart;
+		fields[f + NAME_END] = nameEnd;
+		fields[f + VALUE_START] = valueStart;
+		fields[f + VALUE_END] = valueEnd;
+		if (values != null && values.length < count) {
+			values = Arrays.copyOf(values, fields.length / 4);
+		}
+		return count - 1;
+	}
+
+	/**
+	 * Find the last field with the given name.
+	 * @param name the name, in lower case.
+	 * @return the field number, or -1 if there is no such field.
+	 */
+	int find(byte[] name) {
+		for (int i = count - 1; i >= 0; i--) {
+			int start = fields[4 * i + NAME_START];
+			int n = fields[4 * i + NAME_END] - start;
+			if (n == name.length && equalsLowerCase(start, n, name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the last field with the given name, ignoring case.
+	 * @param name the name.
+	 * @return the field number, or -1 if there is no such field.
+	 */
+	int find(String name) {
+		boolean ascii = isAscii(name);
+		for (int i = count - 1; i >= 0; i--) {
+			int start = fields[4 * i + NAME_START];
+			int n = fields[4 * i + NAME_END] - start;
+			if (ascii) {
+				if (n == name.length() && equalsIgnoreCase(start, n, name)) {
+					return i;
+				}
+			} else if (decode(start, n).equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isAscii(String s) {
+		for (int j = 0; j < s.length(); j++) {
+			if (s.charAt(j) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean equalsLowerCase(int start, int n, byte[] name) {
+		for (int j = 0; j < n; j++) {
+			if (toLowerCase(text[start + j] & 0xff) != name[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean equalsIgnoreCase(int start, int n, String name) {
+		for (int j = 0; j < n; j++) {
+			if (toLowerCase(text[start + j] & 0xff) != toLowerCase(name.charAt(j))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toLowerCase(int c) {
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+
+	/**
+	 * Get the name of a field.
+	 * @param i the field number.
+	 * @return the name, in lower case.
+	 */
+	String name(int i) {
+		int start = fields[4 * i + NAME_START];
+		return decode(start, fields[4 * i + NAME_END] - start).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Get the value of a field.
+	 * @param i the field number, or -1.
+	 * @return the value, or null if {@code i} is -1.
+	 */
+	String value(int i) {
+		if (i < 0) {
+			return null;
+		}
+		if (values == null) {
+			values = new String[fields.length / 4];
+		}
+		String v = values[i];
+		if (v == null) {
+			int start = fields[4 * i + VALUE_START];
+			v = decode(start, fields[4 * i + VALUE_END] - start);
+			values[i] = v;
+		}
+		return v;
+	}
+
+	/**
+	 * Get the value of the last field with the given name.
+	 * @param name the name, in lower case.
+	 * @return the value, or null if there is no such field.
+	 */
+	String get(byte[] name) {
+		return value(find(name));
+	}
+
+	/**
+	 * Get the names of all fields, in lower case and in order of first appearance.
+	 * @return the names.
+	 */
+	Set<String> names() {
+		Set<String> names = new LinkedHashSet<String>();
+		for (int i = 0; i < count; i++) {
+			names.add(name(i));
+		}
+		return Collections.unmodifiableSet(names);
+	}
+
+	private String decode(int start, int n) {
+		for (int j = 0; j < n; j++) {
+			if (text[start + j] < 0) {
+				try {
+					return StandardCharsets.UTF_8.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT)
+						.decode(ByteBuffer.wrap(text, start, n))
+						.toString();
+				} catch (CharacterCodingException e) {
+					break;
+				}
+			}
+		}
+		return new String(text, start, n, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * A buffered input stream that lets the part parser look at its buffer directly.
+ * <p>
+ * This works like {@link java.io.BufferedInputStream}, except that it is not
+ * synchronized and that {@link PartInputStream} can search the whole buffered
+ * window for a boundary instead of reading it one byte at a time.
+ * The fields are package visible for that purpose; the bytes that have not been
+ * consumed yet are {@code buf[pos]} to {@code buf[count - 1]}.
+ * <p>
+ * The input can also be a {@link ByteBuffer}. If the buffer is backed by an
+ * accessible array, that array is used directly and nothing is copied. Otherwise
+ * the content is copied into the lookahead buffer one window at a time.
+ * Either way, {@link #slice(long, long)} returns parts of the original buffer.
+ * <p>
+ * An instance can be reused for new input with {@code reset}; its own buffer is kept
+ * unless it has grown beyond the default size.
+ */
+class LookaheadInputStream extends InputStream {
+
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private InputStream in;
+	private ByteBuffer source;
+	private ByteBuffer origin;
+	// the buffer owned by this stream, as opposed to the array of a heap ByteBuffer
+	private byte[] own;
+
+	byte[] buf;
+	int pos;
+	int count;
+
+	// position in the input of buf[0]
+	private long offset;
+	private int markpos = -1;
+	private int marklimit;
+	private boolean eof;
+
+	/**
+	 * Create a stream without input; {@code reset} must be called before it is used.
+	 */
+	LookaheadInputStream() {
+	}
+
+	LookaheadInputStream(InputStream in) {
+		reset(in);
+	}
+
+	LookaheadInputStream(ByteBuffer buffer) {
+		reset(buffer);
+	}
+
+	/**
+	 * Start reading a new input stream.
+	 * @param in the input.
+	 */
+	void reset(InputStream in) {
+		clear();
+		this.in = in;
+		this.buf = ownBuffer();
+	}
+
+	/**
+	 * Start reading the content of a new buffer.
+	 * @param buffer the input.
+	 */
+	void reset(ByteBuffer buffer) {
+		clear();
+		this.origin = buffer.duplicate();
+		if (buffer.hasArray()) {
+			this.buf = buffer.array();
+			this.pos = buffer.arrayOffset() + buffer.position();
+			this.count = buffer.arrayOffset() + buffer.limit();
+			this.offset = -pos;
+			this.eof = true;
+		} else {
+			this.source = buffer.duplicate();
+			this.buf = ownBuffer();
+		}
+	}
+
+	/**
+	 * Drop all references to the input, so that it isn't kept alive by a reused stream.
+	 * An own buffer that has grown beyond the default size is dropped too.
+	 */
+	void clear() {
+		if (buf == own && buf != null && buf.length > DEFAULT_BUFFER_SIZE) {
+			own = null;
+		}
+		in = null;
+		source = null;
+		origin = null;
+		buf = null;
+		pos = 0;
+		count = 0;
+		offset = 0;
+		markpos = -1;
+		marklimit = 0;
+		eof = false;
+	}
+
+	private byte[] ownBuffer() {
+		if (own == null) {
+			own = new byte[DEFAULT_BUFFER_SIZE];
+		}
+		return own;
+	}
+
+	/**
+	 * Get the number of bytes consumed so far.
+	 * @return the position in the input.
+	 */
+	long position() {
+		return offset + pos;
+	}
+
+	/**
+	 * Check whether the input is a ByteBuffer that {@link #slice(long, long)} can return parts of.
+	 * @return true if the input is a ByteBuffer.
+	 */
+	boolean isSliceable() {
+		return origin != null;
+	}
+
+	/**
+	 * Get a read-only view of part of the input buffer, without copying.
+	 * @param start the position in the input of the first byte.
+	 * @param end the position in the input after the last byte.
+	 * @return the slice.
+	 * @throws IllegalStateException if the input is not a ByteBuffer.
+	 */
+	ByteBuffer slice(long start, long end) {
+		return region(start, end).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get a view of part of the input buffer, with the same access as the input buffer.
+	 * This is for use within the package only; views handed to applications must be read-only.
+	 * @param start the position in the input of the first byte.
+	 * @param end the position in the input after the last byte.
+	 * @return the view.
+	 * @throws IllegalStateException if the input is not a ByteBuffer.
+	 */
+	ByteBuffer region(long start, long end) {
+		if (origin == null) {
+			throw new IllegalStateException("The input is not a ByteBuffer");
+		}
+		ByteBuffer view = origin.duplicate();
+		int base = origin.position();
+		view.limit(base + (int) end);
+		view.position(base + (int) start);
+		return view.slice();
+	}
+
+	/**
+	 * Make sure that at least {@code n} unread bytes are buffered, unless the
+	 * underlying stream ends first. The buffer is grown if it is too small.
+	 * @param n the number of bytes wanted.
+	 * @return the number of unread bytes in the buffer, less than {@code n} only at end of stream.
+	 * @throws IOException if a read error occurs.
+	 */
+	int fill(int n) throws IOException {
+		if (count - pos >= n || eof) {
+			return count - pos;
+		}
+		if (markpos >= 0 && pos - markpos > marklimit) {
+			markpos = -1;
+		}
+		int keep = (markpos >= 0) ? markpos : pos;
+		if (keep > 0) {
+			System.arraycopy(buf, keep, buf, 0, count - keep);
+			offset += keep;
+			pos -= keep;
+			count -= keep;
+			if (markpos >= 0) {
+				markpos -= keep;
+			}
+		}
+		if (pos + n > buf.length) {
+			byte[] grown = new byte[Math.max(pos + n, buf.length * 2)];
+			System.arraycopy(buf, 0, grown, 0, count);
+			buf = grown;
+			own = grown;
+		}
+		while (count - pos < n) {
+			int r = readSource(buf, count, buf.length - count);
+			if (r < 0) {
+				eof = true;
+				break;
+			}
+			count += r;
+		}
+		return count - pos;
+	}
+
+	private int readSource(byte[] b, int off, int len) throws IOException {
+		if (source == null) {
+			return in.read(b, off, len);
+		}
+		if (!source.hasRemaining()) {
+			return -1;
+		}
+		int n = Math.min(len, source.remaining());
+		source.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos >= count && fill(1) <= 0) {
+			return -1;
+		}
+		return buf[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		int avail = fill(1);
+		if (avail <= 0) {
+			return -1;
+		}
+		int n = Math.min(avail, len);
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		int avail = fill(1);
+		int skipped = (int) Math.min(avail, n);
+		pos += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (eof) {
+			return count - pos;
+		}
+		return (count - pos) + ((source != null) ? source.remaining() : in.available());
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public void mark(int readlimit) {
+		marklimit = readlimit;
+		markpos = pos;
+	}
+
+	@Override
+	public void reset() throws IOException {
+		if (markpos < 0) {
+			throw new IOException("Resetting to invalid mark");
+		}
+		pos = markpos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A parsed multipart content type: the subtype and the parameters.
+ * <p>
+ * Parsing is done by {@link MultipartInput#parseContentType(String)} and
+ * {@link MultipartInput#parseParams(String)}, and the result is cached. Most
+ * senders use only a few content types that differ in nothing but the boundary,
+ * so the cache is keyed on the content type without the value of the "boundary"
+ * parameter, which is located in the string directly and held by each instance.
+ * The cache is safe for concurrent use and keeps the {@link #CACHE_SIZE} most
+ * recently used content types.
+ * @author Daniel Nilsson
+ */
+public final class MediaType {
+
+	/**
+	 * The maximum number of content types kept in the cache.
+	 */
+	public static final int CACHE_SIZE = 256;
+
+	private static final Map<Key, MediaType> cache = new LinkedHashMap<Key, MediaType>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, MediaType> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final String subtype;
+	private final Map<String, String> parameters;
+	private final String boundary;
+
+	private MediaType(String subtype, Map<String, String> parameters, String boundary) {
+		this.subtype = subtype;
+		this.parameters = parameters;
+		this.boundary = boundary;
+	}
+
+	/**
+	 * Parse a content type.
+	 * @param contentType the content type value.
+	 * @return the parsed content type.
+	 * @throws IllegalArgumentException if the major type isn't "multipart" or there is
+	 * a syntax error in the parameters.
+	 */
+	public static MediaType parse(String contentType) {
+		long range = findBoundary(contentType);
+		if (range == -1) {
+			// not understood here; parse it fully for the proper error
+			return create(contentType);
+		}
+		int start = (int) (range >>> 32);
+		int end = (int) range;
+		Key key = new Key(contentType, start, end);
+		MediaType cached;
+		synchronized (cache) {
+			cached = cache.get(key);
+		}
+		if (cached == null) {
+			try {
+				cached = create(contentType.substring(0, start) + contentType.substring(end));
+			} catch (IllegalArgumentException e) {
+				// report the content type as it was given
+				create(contentType);
+				throw e;
+			}
+			synchronized (cache) {
+				cache.put(key, cached);
+			}
+		}
+		if (start == end) {
+			// no boundary, or an empty one: nothing to fill in
+			return cached;
+		}
+		return new MediaType(cached.subtype, cached.parameters, contentType.substring(start, end));
+	}
+
+	private static MediaType create(String contentType) {
+		String subtype = MultipartInput.parseContentType(contentType);
+		Map<String, String> parameters = MultipartInput.parseParams(contentType);
+		return new MediaType(subtype, Collections.unmodifiableMap(parameters), parameters.get(MultipartInput.KEY_BOUNDARY));
+	}
+
+	/**
+	 * Locate the value of the last "boundary" parameter, tokenizing the parameters
+	 * the same way as {@link MultipartInput#parseParams(String)}.
+	 * @param contentType the content type value.
+	 * @return the start and end of the value, packed in the high and low half,
+	 * an empty range if there is no boundary, or -1 if the parameters aren't
+	 * well-formed.
+	 */
+	private static long findBoundary(String contentType) {
+		int n = contentType.length();
+		int i = contentType.indexOf(';');
+		if (i < 0) {
+			return 0;
+		}
+		long range = 0;
+		i++;
+		while (i < n) {
+			int keyStart = i;
+			while (i < n && contentType.charAt(i) != '=') {
+				char c = contentType.charAt(i);
+				if (c == ';' || c == '"') {
+					return -1;
+				}
+				i++;
+			}
+			if (i == n) {
+				// only whitespace may follow the last parameter
+				return isBlank(contentType, keyStart, n) ? range : -1;
+			}
+			boolean isBoundary = isKey(contentType, keyStart, i, MultipartInput.KEY_BOUNDARY);
+			i++;
+			int valueStart = skipBlank(contentType, i, n);
+			int valueEnd;
+			if (valueStart < n && contentType.charAt(valueStart) == '"') {
+				valueStart++;
+				valueEnd = contentType.indexOf('"', valueStart);
+				if (valueEnd < 0) {
+					return -1;
+				}
+				for (i = valueEnd + 1; i < n && contentType.charAt(i) != ';'; i++) {
+					if (!Character.isWhitespace(contentType.charAt(i))) {
+						return -1;
+					}
+				}
+			} else {
+				for (i = valueStart; i < n && contentType.charAt(i) != ';'; i++) {
+					char c = contentType.charAt(i);
+					if (c == '=' || c == '"') {
+						return -1;
+					}
+				}
+				valueEnd = i;
+			}
+			// values are trimmed, quoted or not
+			valueStart = skipBlank(contentType, valueStart, valueEnd);
+			while (valueEnd > valueStart && contentType.charAt(valueEnd - 1) <= ' ') {
+				valueEnd--;
+			}
+			if (isBoundary) {
+				range = ((long) valueStart << 32) | valueEnd;
+			}
+			i++;
+		}
+		return range;
+	}
+
+	private static boolean isKey(String s, int start, int end, String key) {
+		start = skipBlank(s, start, end);
+		while (end > start && s.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return end - start == key.length() && s.regionMatches(true, start, key, 0, key.length());
+	}
+
+	private static int skipBlank(String s, int i, int end) {
+		while (i < end && s.charAt(i) <= ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isBlank(String s, int start, int end) {
+		return skipBlank(s, start, end) == end;
+	}
+
+	/**
+	 * Get the multipart subtype, eg. "mixed" or "x-mixed-replace".
+	 * @return the subtype.
+	 */
+	public String getSubtype() {
+		return subtype;
+	}
+
+	/**
+	 * Get the value of the "boundary" parameter.
+	 * @return the boundary, or null if there is no such parameter.
+	 */
+	public String getBoundary() {
+		return boundary;
+	}
+
+	/**
+	 * Get the value of a content type parameter.
+	 * @param key the parameter name, eg. "boundary".
+	 * @return the parameter value.
+	 */
+	public String getParameter(String key) {
+		String k = key.toLowerCase();
+		if (MultipartInput.KEY_BOUNDARY.equals(k)) {
+			return boundary;
+		}
+		return parameters.get(k);
+	}
+
+	/**
+	 * Get all parameters.
+	 * @return a map of all parameters.
+	 */
+	public Map<String, String> getParameters() {
+		if (boundary == null || boundary.equals(parameters.get(MultipartInput.KEY_BOUNDARY))) {
+			return parameters;
+		}
+		Map<String, String> all = new HashMap<String, String>(parameters);
+		all.put(MultipartInput.KEY_BOUNDARY, boundary);
+		return Collections.unmodifiableMap(all);
+	}
+
+	/**
+	 * A content type with the range of the boundary value left out.
+	 */
+	private static final class Key {
+		private final String s;
+		private final int start;
+		private final int end;
+		private final int hash;
+
+		Key(String s, int start, int end) {
+			this.s = s;
+			this.start = start;
+			this.end = end;
+			int h = 0;
+			for (int i = 0; i < start; i++) {
+				h = 31 * h + s.charAt(i);
+			}
+			for (int i = end; i < s.length(); i++) {
+				h = 31 * h + s.charAt(i);
+			}
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			int tail = s.length() - end;
+			return hash == k.hash && start == k.start && tail == k.s.length() - k.end
+				&& s.regionMatches(0, k.s, 0, start)
+				&& s.regionMatches(end, k.s, k.end, tail);
+		}
+	}
+}
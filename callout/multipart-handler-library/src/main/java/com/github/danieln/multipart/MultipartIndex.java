@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * An index of the parts of a multipart message held in a ByteBuffer.
+ * <p>
+ * The index is built by {@link MultipartInput#index()} in a single pass over the
+ * content. It records where the headers and the body of each part are, and the
+ * Content-Type and Content-ID of each part, so that the parts can then be accessed
+ * in any order, any number of times, without parsing the content again.
+ * <p>
+ * Offsets are relative to the position the ByteBuffer had when the
+ * {@link MultipartInput} was created.
+ * <p>
+ * The index reads the content through its {@link MultipartInput}, so it is invalid
+ * once that instance is reset or released to a {@link MultipartInputPool}. ByteBuffers
+ * already returned by {@link #getBody(int)} remain valid.
+ * @author Daniel Nilsson
+ */
+public class MultipartIndex {
+
+	private final LookaheadInputStream stream;
+	private final BoundaryFinder finder;
+	private final String start;
+	private final ContentLengthMode contentLengthMode;
+
+	private int size;
+	private int[] headerOffsets = new int[8];
+	private int[] bodyOffsets = new int[8];
+	private int[] bodyLengths = new int[8];
+	private String[] contentTypes = new String[8];
+	private String[] contentIds = new String[8];
+	private final Map<String, Integer> byContentId = new HashMap<String, Integer>();
+
+	MultipartIndex(LookaheadInputStream stream, BoundaryFinder finder, String start, ContentLengthMode contentLengthMode) {
+		this.stream = stream;
+		this.finder = finder;
+		this.start = start;
+		this.contentLengthMode = contentLengthMode;
+	}
+
+	void add(PartInput part) throws IOException {
+		if (size == headerOffsets.length) {
+			int n = size * 2;
+			headerOffsets = Arrays.copyOf(headerOffsets, n);
+			bodyOffsets = Arrays.copyOf(bodyOffsets, n);
+			bodyLengths = Arrays.copyOf(bodyLengths, n);
+			contentTypes = Arrays.copyOf(contentTypes, n);
+			contentIds = Arrays.copyOf(contentIds, n);
+		}
+		int body = (int) part.getBodyPosition();
+		headerOffsets[size] = (int) part.getHeaderPosition();
+		bodyOffsets[size] = body;
+		bodyLengths[size] = (int) part.getEndPosition() - body;
+		contentTypes[size] = part.getContentType();
+		String id = normalizeContentId(part.getHeaderField(HeaderFields.CONTENT_ID));
+		contentIds[size] = id;
+		if (id != null && !byContentId.containsKey(id)) {
+			byContentId.put(id, size);
+		}
+		size++;
+	}
+
+	/**
+	 * Normalize a Content-ID header value, or a reference to one such as the "start"
+	 * parameter: surrounding whitespace, quotes and angle brackets are removed.
+	 * @param contentId the Content-ID, eg. "&lt;part1@example.com&gt;".
+	 * @return the normalized Content-ID, eg. "part1@example.com", or null if the argument is null.
+	 */
+	public static String normalizeContentId(String contentId) {
+		if (contentId == null) {
+			return null;
+		}
+		String s = contentId.trim();
+		int n = s.length();
+		if (n >= 2 && (s.charAt(0) == '"' || s.charAt(0) == '\'') && s.charAt(n - 1) == s.charAt(0)) {
+			s = s.substring(1, n - 1).trim();
+			n = s.length();
+		}
+		if (n >= 2 && s.charAt(0) == '<' && s.charAt(n - 1) == '>') {
+			s = s.substring(1, n - 1).trim();
+		}
+		return s;
+	}
+
+	/**
+	 * Get the number of parts.
+	 * @return the number of parts.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find a part by its Content-ID.
+	 * @param contentId the Content-ID, with or without angle brackets.
+	 * @return the index of the first part with that Content-ID, or -1 if there is none.
+	 */
+	public int indexOf(String contentId) {
+		Integer i = byContentId.get(normalizeContentId(contentId));
+		return (i != null) ? i : -1;
+	}
+
+	/**
+	 * Get the root part, as specified by RFC2387.
+	 * This is the part referred to by the "start" parameter of the content type,
+	 * or the first part if there is no such parameter or no part matches it.
+	 * @return the index of the root part, or -1 if there are no parts.
+	 */
+	public int getRoot() {
+		if (size == 0) {
+			return -1;
+		}
+		int i = (start != null) ? indexOf(start) : -1;
+		return (i >= 0) ? i : 0;
+	}
+
+	/**
+	 * Get the position of the headers of a part.
+	 * @param i the index of the part.
+	 * @return the offset of the first header byte.
+	 */
+	public int getHeaderOffset(int i) {
+		checkIndex(i);
+		return headerOffsets[i];
+	}
+
+	/**
+	 * Get the position of the body of a part.
+	 * @param i the index of the part.
+	 * @return the offset of the first body byte.
+	 */
+	public int getBodyOffset(int i) {
+		checkIndex(i);
+		return bodyOffsets[i];
+	}
+
+	/**
+	 * Get the length of the body of a part.
+	 * @param i the index of the part.
+	 * @return the number of bytes in the body.
+	 */
+	public int getBodyLength(int i) {
+		checkIndex(i);
+		return bodyLengths[i];
+	}
+
+	/**
+	 * Get the Content-Type header of a part.
+	 * @param i the index of the part.
+	 * @return the content type, or null if the part has none.
+	 */
+	public String getContentType(int i) {
+		checkIndex(i);
+		return contentTypes[i];
+	}
+
+	/**
+	 * Get the normalized Content-ID of a part.
+	 * @param i the index of the part.
+	 * @return the Content-ID without angle brackets, or null if the part has none.
+	 */
+	public String getContentId(int i) {
+		checkIndex(i);
+		return contentIds[i];
+	}
+
+	/**
+	 * Get the body of a part as a read-only slice of the content, without copying.
+	 * @param i the index of the part.
+	 * @return the body.
+	 */
+	public ByteBuffer getBody(int i) {
+		checkIndex(i);
+		return stream.slice(bodyOffsets[i], bodyOffsets[i] + bodyLengths[i]);
+	}
+
+	/**
+	 * Get a part, with all of its headers.
+	 * Each call returns a new PartInput that reads the part from the start,
+	 * so parts can be retrieved in any order and more than once.
+	 * @param i the index of the part.
+	 * @return the part.
+	 */
+	public PartInput getPart(int i) {
+		checkIndex(i);
+		ByteBuffer region = stream.region(headerOffsets[i], bodyOffsets[i] + bodyLengths[i]);
+		return new PartInput(new PartInputStream(new LookaheadInputStream(region), finder), contentLengthMode);
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Part " + i + " of " + size);
+		}
+	}
+}
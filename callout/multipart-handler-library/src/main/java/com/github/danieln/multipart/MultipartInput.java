@@ -5,11 +5,12 @@
  */
 package com.github.danieln.multipart;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -32,6 +33,10 @@ import java.util.Map;
  * specifies the string that, prepended with "--", separates the parts.
  * A complete content type can look like this:
  * "multipart/mixed;boundary=QWERTY12345"
+ * <p>
+ * An instance can be reused for another message with {@code reset}, which keeps
+ * its buffers. {@link MultipartInputPool} keeps a bounded number of instances for
+ * reuse. Parts and indexes retrieved before a reset must not be used after it.
  * @author Daniel Nilsson
  */
 public class MultipartInput {
@@ -43,12 +48,25 @@ public class MultipartInput {
 
 	private static final int PREEMBLE_LIMIT = 2000;
 
-	private final InputStream stream;
-	private final String subtype;
-	private final Map<String, String> parameters;
-	private final String boundary;
+	private final LookaheadInputStream stream = new LookaheadInputStream();
+	private MediaType mediaType;
+	private BoundaryFinder finder;
 
 	private PartInputStream partStream;
+	private ContentLengthMode contentLengthMode = ContentLengthMode.IGNORE;
+	private int maxParts = -1;
+	private long maxPartLength = -1;
+	private int maxHeaderLength = -1;
+	private int partCount;
+	// whether this instance is idle in a MultipartInputPool
+	final AtomicBoolean pooled = new AtomicBoolean();
+
+	/**
+	 * Create a new MultipartMessage without content.
+	 * One of the {@code reset} methods must be called before it is used.
+	 */
+	public MultipartInput() {
+	}
 
 	/**
 	 * Create a new MultipartMessage that parses the given stream.
@@ -58,10 +76,97 @@ public class MultipartInput {
 	 * @throws IllegalArgumentException if the content type is bad.
 	 */
 	public MultipartInput(InputStream stream, String contentType) throws IOException {
-		this.stream = new BufferedInputStream(stream);
-		this.subtype = parseContentType(contentType);
-		this.parameters = parseParams(contentType);
-		String b = getParameter(KEY_BOUNDARY);
+		reset(stream, contentType);
+	}
+
+	/**
+	 * Create a new MultipartMessage that parses the content of the given buffer.
+	 * <p>
+	 * The buffer can be a heap buffer, a direct buffer or a {@link java.nio.MappedByteBuffer}.
+	 * {@link PartInput#getByteBuffer()} returns the body of each part as a read-only
+	 * slice of this buffer, without copying. The content between the position and
+	 * the limit of the buffer is parsed; the buffer itself is not modified, and must
+	 * not be modified while the parts are in use.
+	 * @param buffer the multipart content.
+	 * @param contentType the content type, must have major type "multipart" and a "boundary" parameter.
+	 * @throws IOException if the first boundary can't be found.
+	 * @throws IllegalArgumentException if the content type is bad.
+	 */
+	public MultipartInput(ByteBuffer buffer, String contentType) throws IOException {
+		reset(buffer, contentType);
+	}
+
+	/**
+	 * Start parsing a new stream, as if this MultipartMessage had just been created for it.
+	 * @param stream the multipart stream.
+	 * @param contentType the content type, must have major type "multipart" and a "boundary" parameter.
+	 * @throws IOException if a read error occurs.
+	 * @throws IllegalArgumentException if the content type is bad.
+	 */
+	public void reset(InputStream stream, String contentType) throws IOException {
+		reset(stream, MediaType.parse(contentType));
+	}
+
+	/**
+	 * Start parsing a new stream, as if this MultipartMessage had just been created for it.
+	 * @param stream the multipart stream.
+	 * @param mediaType the parsed content type, must have a "boundary" parameter.
+	 * @throws IOException if a read error occurs.
+	 * @throws IllegalArgumentException if there is no boundary.
+	 */
+	public void reset(InputStream stream, MediaType mediaType) throws IOException {
+		this.stream.reset(stream);
+		init(mediaType);
+	}
+
+	/**
+	 * Start parsing the content of a new buffer, as if this MultipartMessage had just been created for it.
+	 * @param buffer the multipart content.
+	 * @param contentType the content type, must have major type "multipart" and a "boundary" parameter.
+	 * @throws IOException if the first boundary can't be found.
+	 * @throws IllegalArgumentException if the content type is bad.
+	 * @see #MultipartInput(ByteBuffer, String)
+	 */
+	public void reset(ByteBuffer buffer, String contentType) throws IOException {
+		reset(buffer, MediaType.parse(contentType));
+	}
+
+	/**
+	 * Start parsing the content of a new buffer, as if this MultipartMessage had just been created for it.
+	 * @param buffer the multipart content.
+	 * @param mediaType the parsed content type, must have a "boundary" parameter.
+	 * @throws IOException if the first boundary can't be found.
+	 * @throws IllegalArgumentException if there is no boundary.
+	 * @see #MultipartInput(ByteBuffer, String)
+	 */
+	public void reset(ByteBuffer buffer, MediaType mediaType) throws IOException {
+		this.stream.reset(buffer);
+		init(mediaType);
+	}
+
+	/**
+	 * Drop all references to the current content, so that a reused instance doesn't keep it alive.
+	 * The stream is not closed.
+	 */
+	public void clear() {
+		stream.clear();
+		mediaType = null;
+		partStream = null;
+		contentLengthMode = ContentLengthMode.IGNORE;
+		maxParts = -1;
+		maxPartLength = -1;
+		maxHeaderLength = -1;
+	}
+
+	private void init(MediaType mediaType) throws IOException {
+		this.partStream = null;
+		this.contentLengthMode = ContentLengthMode.IGNORE;
+		this.maxParts = -1;
+		this.maxPartLength = -1;
+		this.maxHeaderLength = -1;
+		this.partCount = 0;
+		this.mediaType = mediaType;
+		String b = mediaType.getBoundary();
 		if (b == null || b.length() == 0) {
 			throw new IllegalArgumentException("No or empty boundary specified in the ContentType");
 		}
@@ -70,8 +175,12 @@ public class MultipartInput {
 		// if (b.startsWith("--")) {
 		// 	b = b.substring(2);
 		// }
-		this.boundary = b;
-		this.partStream = new PartInputStream(this.stream, boundary);
+		if (finder == null) {
+			finder = new BoundaryFinder(b);
+		} else {
+			finder.reset(b);
+		}
+		this.partStream = new PartInputStream(this.stream, finder);
 		partStream.skipToNextPart(PREEMBLE_LIMIT);
 		// If a boundary was found read should return -1 (EOF)
 		if (partStream.read() >= 0) {
@@ -84,7 +193,7 @@ public class MultipartInput {
 	 * @return the subtype.
 	 */
 	public String getSubtype() {
-		return subtype;
+		return mediaType.getSubtype();
 	}
 
 	/**
@@ -93,7 +202,60 @@ public class MultipartInput {
 	 * @return the parameter value.
 	 */
 	public String getParameter(String key) {
-		return parameters.get(key.toLowerCase());
+		return mediaType.getParameter(key);
+	}
+
+	/**
+	 * Get the parsed content type.
+	 * @return the content type.
+	 */
+	public MediaType getMediaType() {
+		return mediaType;
+	}
+
+	/**
+	 * Set how the Content-Length header of each part is used.
+	 * The default is {@link ContentLengthMode#IGNORE}.
+	 * @param mode the mode, applies to parts retrieved after this call.
+	 */
+	public void setContentLengthMode(ContentLengthMode mode) {
+		this.contentLengthMode = mode;
+	}
+
+	/**
+	 * Get how the Content-Length header of each part is used.
+	 * @return the mode.
+	 */
+	public ContentLengthMode getContentLengthMode() {
+		return contentLengthMode;
+	}
+
+	/**
+	 * Limit the number of parts. Retrieving a part beyond the limit throws an IOException.
+	 * There is no limit by default.
+	 * @param max the most parts, or -1 for no limit.
+	 */
+	public void setMaxParts(int max) {
+		this.maxParts = max;
+	}
+
+	/**
+	 * Limit the length of the body of each part. Reading past the limit throws an
+	 * IOException, so a part that is too long is not read to its end.
+	 * There is no limit by default.
+	 * @param max the most bytes in a body, or -1 for no limit; applies to parts retrieved after this call.
+	 */
+	public void setMaxPartLength(long max) {
+		this.maxPartLength = max;
+	}
+
+	/**
+	 * Limit the length of the headers of each part, line ends included. Reading past
+	 * the limit throws an IOException. There is no limit by default.
+	 * @param max the most bytes in the headers, or -1 for no limit; applies to parts retrieved after this call.
+	 */
+	public void setMaxHeaderLength(int max) {
+		this.maxHeaderLength = max;
 	}
 
 	/**
@@ -102,15 +264,41 @@ public class MultipartInput {
 	 * This means that the application must read all data it needs from one part before
 	 * getting the next one.
 	 * @return the next part, or null if there are no more parts.
-	 * @throws IOException if a read error occurs.
+	 * @throws IOException if a read error occurs, or a limit is exceeded.
 	 */
 	public PartInput nextPart() throws IOException {
+		if (partStream == null) {
+			throw new IllegalStateException("There is no content to parse");
+		}
 		partStream.skipToNextPart();
 		if (partStream.isLastPart()) {
 			return null;
 		}
-		partStream = new PartInputStream(stream, boundary);
-		return new PartInput(partStream);
+		if (maxParts >= 0 && partCount == maxParts) {
+			throw new IOException("The message has more than the limit of " + maxParts + " parts");
+		}
+		partCount++;
+		partStream = new PartInputStream(stream, finder);
+		return new PartInput(partStream, contentLengthMode, maxHeaderLength, maxPartLength);
+	}
+
+	/**
+	 * Index the remaining parts in a single pass.
+	 * The parts can then be accessed in any order through the index, for example
+	 * by Content-ID. After this {@link #nextPart()} returns null.
+	 * @return the index.
+	 * @throws IOException if a read error occurs, or a limit is exceeded.
+	 * @throws IllegalStateException if this MultipartInput wasn't created from a ByteBuffer.
+	 */
+	public MultipartIndex index() throws IOException {
+		if (!stream.isSliceable()) {
+			throw new IllegalStateException("Only content in a ByteBuffer can be indexed");
+		}
+		MultipartIndex index = new MultipartIndex(stream, finder, getParameter("start"), contentLengthMode);
+		for (PartInput part = nextPart(); part != null; part = nextPart()) {
+			index.add(part);
+		}
+		return index;
 	}
 
 	/**
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * A bounded pool of reusable {@link MultipartInput} instances.
+ * <p>
+ * Reusing an instance saves allocating its read buffer and boundary search table
+ * for every message. The pool is safe for use by concurrent threads, and never
+ * blocks: {@link #acquire(ByteBuffer, String)} creates a new instance when the pool
+ * is empty, and {@link #release(MultipartInput)} drops the instance when the pool
+ * is full. So a burst of concurrent messages is served without waiting, and
+ * afterwards at most {@code maxIdle} instances are kept.
+ * <p>
+ * An idle instance holds no reference to the content it parsed, only its own
+ * buffers: about 9 KiB, as buffers that have grown beyond the default size are dropped.
+ */
+public class MultipartInputPool {
+
+	/**
+	 * The default number of idle instances kept.
+	 */
+	public static final int DEFAULT_MAX_IDLE = 16;
+
+	private final BlockingQueue<MultipartInput> idle;
+
+	/**
+	 * Create a pool that keeps up to {@link #DEFAULT_MAX_IDLE} idle instances.
+	 */
+	public MultipartInputPool() {
+		this(DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * Create a pool.
+	 * @param maxIdle the maximum number of idle instances kept, must be positive.
+	 */
+	public MultipartInputPool(int maxIdle) {
+		this.idle = new ArrayBlockingQueue<MultipartInput>(maxIdle);
+	}
+
+	/**
+	 * Get an instance that parses the given stream.
+	 * @param stream the multipart stream.
+	 * @param contentType the content type, must have major type "multipart" and a "boundary" parameter.
+	 * @return the instance, to be released when done with it.
+	 * @throws IOException if a read error occurs.
+	 * @throws IllegalArgumentException if the content type is bad.
+	 */
+	public MultipartInput acquire(InputStream stream, String contentType) throws IOException {
+		MultipartInput mpi = take();
+		try {
+			mpi.reset(stream, contentType);
+		} catch (IOException | RuntimeException e) {
+			release(mpi);
+			throw e;
+		}
+		return mpi;
+	}
+
+	/**
+	 * Get an instance that parses the content of the given buffer.
+	 * @param buffer the multipart content.
+	 * @param contentType the content type, must have major type "multipart" and a "boundary" parameter.
+	 * @return the instance, to be released when done with it.
+	 * @throws IOException if the first boundary can't be found.
+	 * @throws IllegalArgumentException if the content type is bad.
+	 */
+	public MultipartInput acquire(ByteBuffer buffer, String contentType) throws IOException {
+		MultipartInput mpi = take();
+		try {
+			mpi.reset(buffer, contentType);
+		} catch (IOException | RuntimeException e) {
+			release(mpi);
+			throw e;
+		}
+		return mpi;
+	}
+
+	/**
+	 * Get an instance that parses the content of the given buffer.
+	 * @param buffer the multipart content.
+	 * @param mediaType the parsed content type, must have a "boundary" parameter.
+	 * @return the instance, to be released when done with it.
+	 * @throws IOException if the first boundary can't be found.
+	 * @throws IllegalArgumentException if there is no boundary.
+	 */
+	public MultipartInput acquire(ByteBuffer buffer, MediaType mediaType) throws IOException {
+		MultipartInput mpi = take();
+		try {
+			mpi.reset(buffer, mediaType);
+		} catch (IOException | RuntimeException e) {
+			release(mpi);
+			throw e;
+		}
+		return mpi;
+	}
+
+	/**
+	 * Return an instance to the pool. Its parts and index must not be used afterwards,
+	 * but ByteBuffers returned by them remain valid. Releasing an instance that is
+	 * already idle has no effect.
+	 * @param mpi the instance, may be null.
+	 */
+	public void release(MultipartInput mpi) {
+		// only one of concurrent releases of the same instance gets past this
+		if (mpi == null || !mpi.pooled.compareAndSet(false, true)) {
+			return;
+		}
+		mpi.clear();
+		if (!idle.offer(mpi)) {
+			mpi.pooled.set(false);
+		}
+	}
+
+	/**
+	 * Get the number of idle instances.
+	 * @return the number of instances available for reuse.
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	private MultipartInput take() {
+		MultipartInput mpi = idle.poll();
+		if (mpi == null) {
+			return new MultipartInput();
+		}
+		mpi.pooled.set(false);
+		return mpi;
+	}
+}
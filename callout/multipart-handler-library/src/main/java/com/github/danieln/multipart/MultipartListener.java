@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Receives the events reported by a {@link MultipartParser}.
+ * <p>
+ * For every part the parser calls {@link #partStart()}, then {@link #header(String, String)}
+ * for each header, then {@link #bodyChunk(ByteBuffer)} zero or more times, and
+ * finally {@link #partEnd()}.
+ */
+public interface MultipartListener {
+
+	/**
+	 * A new part starts.
+	 * @throws IOException to abort parsing.
+	 */
+	void partStart() throws IOException;
+
+	/**
+	 * A header of the current part.
+	 * @param name the header name, in lower case.
+	 * @param value the header value.
+	 * @throws IOException to abort parsing.
+	 */
+	void header(String name, String value) throws IOException;
+
+	/**
+	 * A chunk of the body of the current part.
+	 * The buffer is read-only and is only valid during this call, since it may
+	 * share memory with the input; copy the bytes if they are needed later.
+	 * @param chunk the bytes of the chunk.
+	 * @throws IOException to abort parsing.
+	 */
+	void bodyChunk(ByteBuffer chunk) throws IOException;
+
+	/**
+	 * The current part ends.
+	 * @throws IOException to abort parsing.
+	 */
+	void partEnd() throws IOException;
+
+}
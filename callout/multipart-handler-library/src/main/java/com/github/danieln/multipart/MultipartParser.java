@@ -0,0 +1,555 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Parse MIME multipart content incrementally, as it arrives.
+ * <p>
+ * This is the push counterpart of {@link MultipartInput}. Instead of reading from
+ * a stream, the parser is handed chunks of content with {@link #feed(ByteBuffer)}
+ * and reports what it finds to a {@link MultipartListener}. It never blocks, so it
+ * can be driven from NIO channels or asynchronous HTTP bodies. A boundary may be
+ * split across any number of chunks.
+ * <p>
+ * Boundaries and headers are recognized exactly the way {@link MultipartInput}
+ * recognizes them, so both produce the same parts from the same content.
+ * @author Daniel Nilsson
+ */
+public class MultipartParser {
+
+	private static final int PREEMBLE_LIMIT = 2000;
+	private static final int CHUNK_SIZE = 8192;
+
+	// States of the boundary recognizer
+	private static final int DATA = 0;            // passing on the content of a part or the preamble
+	private static final int CANDIDATE = 1;       // holding bytes that might start a boundary
+	private static final int AFTER_BOUNDARY = 2;  // a boundary was found, a "--" may follow
+	private static final int AFTER_DASH = 3;      // one '-' after the boundary
+	private static final int SKIP_LINE = 4;       // skipping to the end of the boundary line
+	private static final int AFTER_CR = 5;        // the boundary line ended with CR, a LF may follow
+	private static final int EPILOGUE = 6;        // after the final boundary
+
+	// States of the header parser
+	private static final int H_FIRST = 0;         // at the first byte of the part
+	private static final int H_FIRST_CR = 1;      // the part starts with CR, so it has no headers
+	private static final int H_LINE = 2;          // within a header line
+	private static final int H_NEWLINE = 3;       // after CR or LF
+	private static final int H_NEWLINE_CRLF = 4;  // after CRLF
+	private static final int H_NEWLINE_CRLFCR = 5;// after CRLF CR
+	private static final int H_BODY = 6;          // the headers are done
+
+	private final MultipartListener listener;
+	private final MediaType mediaType;
+	private final BoundaryFinder finder;
+	private final byte[] boundary;
+	private final int lookahead;
+
+	private int state = DATA;
+	private boolean atStart = true;
+	private boolean lastPart;
+	private boolean ended;
+	private byte[] held;
+	private int heldLength;
+	private byte[] scratch;
+
+	private boolean inPreamble = true;
+	private int preambleLength;
+
+	private int maxParts = -1;
+	private long maxPartLength = -1;
+	private int maxHeaderLength = -1;
+	private int partCount;
+	private long partLength;
+	private int headerLength;
+
+	private int headerState;
+	private HeaderFields headers;
+	private int start;
+	private int keyStart;
+	private int keyEnd;
+	private boolean inKey;
+	private int newline;
+
+	/**
+	 * Create a new MultipartParser.
+	 * @param contentType the content type, must have major type "multipart" and a "boundary" parameter.
+	 * @param listener the listener that receives the parts.
+	 * @throws IllegalArgumentException if the content type is bad.
+	 */
+	public MultipartParser(String contentType, MultipartListener listener) {
+		this(MediaType.parse(contentType), listener);
+	}
+
+	/**
+	 * Create a new MultipartParser for a content type that has already been parsed.
+	 * @param mediaType the content type, must have a "boundary" parameter.
+	 * @param listener the listener that receives the parts.
+	 * @throws IllegalArgumentException if there is no boundary.
+	 */
+	public MultipartParser(MediaType mediaType, MultipartListener listener) {
+		this.listener = listener;
+		this.mediaType = mediaType;
+		String b = mediaType.getBoundary();
+		if (b == null || b.length() == 0) {
+			throw new IllegalArgumentException("No or empty boundary specified in the ContentType");
+		}
+		this.finder = new BoundaryFinder(b);
+		this.boundary = finder.delimiter();
+		this.lookahead = boundary.length + 2;
+		this.held = new byte[lookahead];
+	}
+
+	/**
+	 * Get the multipart subtype, eg. "mixed" or "x-mixed-replace".
+	 * @return the subtype.
+	 */
+	public String getSubtype() {
+		return mediaType.getSubtype();
+	}
+
+	/**
+	 * Get the value of a content type parameter.
+	 * @param key the parameter name, eg. "boundary".
+	 * @return the parameter value.
+	 */
+	public String getParameter(String key) {
+		return mediaType.getParameter(key);
+	}
+
+	/**
+	 * Limit the number of parts, as {@link MultipartInput#setMaxParts(int)} does.
+	 * Feeding the start of a part beyond the limit throws an IOException.
+	 * There is no limit by default.
+	 * @param max the most parts, or -1 for no limit.
+	 */
+	public void setMaxParts(int max) {
+		this.maxParts = max;
+	}
+
+	/**
+	 * Limit the length of the body of each part, as {@link MultipartInput#setMaxPartLength(long)}
+	 * does. Feeding a body past the limit throws an IOException, before the chunk that goes past
+	 * it is reported. There is no limit by default.
+	 * @param max the most bytes in a body, or -1 for no limit.
+	 */
+	public void setMaxPartLength(long max) {
+		this.maxPartLength = max;
+	}
+
+	/**
+	 * Limit the length of the headers of each part, line ends included, as
+	 * {@link MultipartInput#setMaxHeaderLength(int)} does. Feeding headers past the limit
+	 * throws an IOException. There is no limit by default.
+	 * @param max the most bytes in the headers, or -1 for no limit.
+	 */
+	public void setMaxHeaderLength(int max) {
+		this.maxHeaderLength = max;
+	}
+
+	/**
+	 * Check whether the final boundary, or the end of input, has been seen.
+	 * @return true if there will be no more parts.
+	 */
+	public boolean isComplete() {
+		return state == EPILOGUE;
+	}
+
+	/**
+	 * Parse the next chunk of content. All remaining bytes of the buffer are consumed.
+	 * Events are reported to the listener before this method returns, except for
+	 * bytes near the end of the chunk that can't be classified until more content arrives.
+	 * @param chunk the content.
+	 * @throws IOException if the content is bad, or if the listener throws.
+	 * @throws IllegalStateException if {@link #endOfInput()} has been called.
+	 */
+	public void feed(ByteBuffer chunk) throws IOException {
+		if (ended) {
+			throw new IllegalStateException("End of input has already been signalled");
+		}
+		if (chunk.hasArray()) {
+			int start = chunk.arrayOffset() + chunk.position();
+			process(chunk.array(), start, start + chunk.remaining());
+			chunk.position(chunk.limit());
+			return;
+		}
+		if (scratch == null) {
+			scratch = new byte[CHUNK_SIZE];
+		}
+		while (chunk.hasRemaining()) {
+			int n = Math.min(scratch.length, chunk.remaining());
+			chunk.get(scratch, 0, n);
+			process(scratch, 0, n);
+		}
+	}
+
+	/**
+	 * Signal that there is no more content. Any part that is still open is ended.
+	 * @throws IOException if the content is bad, if no part boundary was found, or if the listener throws.
+	 */
+	public void endOfInput() throws IOException {
+		if (ended) {
+			return;
+		}
+		ended = true;
+		while (true) {
+			if (state == CANDIDATE) {
+				resolveCandidate(true);
+			} else if (state == AFTER_BOUNDARY || state == AFTER_DASH || state == SKIP_LINE || state == AFTER_CR) {
+				boundaryLineEnd();
+			} else {
+				break;
+			}
+		}
+		if (inPreamble && state != EPILOGUE) {
+			// as MultipartInput does for content without a boundary
+			throw new IOException("Can't find first part boundary");
+		}
+		if (state == DATA) {
+			// End of file without boundary
+			lastPart = true;
+			partEnd();
+			state = EPILOGUE;
+		}
+	}
+
+	/**
+	 * Read all content from a stream, then signal the end of input.
+	 * @param stream the multipart stream.
+	 * @throws IOException if a read error occurs, the content is bad, or the listener throws.
+	 */
+	public void parse(InputStream stream) throws IOException {
+		byte[] buf = new byte[CHUNK_SIZE];
+		for (int n = stream.read(buf); n >= 0; n = stream.read(buf)) {
+			feed(ByteBuffer.wrap(buf, 0, n));
+		}
+		endOfInput();
+	}
+
+	private void process(byte[] b, int from, int to) throws IOException {
+		int i = from;
+		while (i < to) {
+			int c;
+			switch (state) {
+				case DATA:
+					if (atStart) {
+						// The boundary may start at the very first byte of a part, with no newline before it.
+						hold(b[i++]);
+						break;
+					}
+					int stop = i;
+					int safeEnd = to - lookahead;
+					if (safeEnd > i) {
+						int p = findDelimiterLine(b, i, to);
+						stop = (p >= 0) ? p : safeEnd;
+					}
+					if (stop == i) {
+						// Too close to the end of the chunk to search, but only a newline can start a boundary
+						while (stop < to && b[stop] != '\r' && b[stop] != '\n') {
+							stop++;
+						}
+					}
+					if (stop > i) {
+						data(b, i, stop - i);
+						i = stop;
+					} else {
+						hold(b[i++]);
+					}
+					break;
+				case CANDIDATE:
+					hold(b[i++]);
+					break;
+				case AFTER_BOUNDARY:
+					// Check for last part marker ("--")
+					c = b[i++];
+					if (c == '-') {
+						state = AFTER_DASH;
+					} else {
+						endOfLine(c);
+					}
+					break;
+				case AFTER_DASH:
+					c = b[i++];
+					if (c == '-') {
+						lastPart = true;
+						state = SKIP_LINE;
+					} else {
+						endOfLine(c);
+					}
+					break;
+				case SKIP_LINE:
+					endOfLine(b[i++]);
+					break;
+				case AFTER_CR:
+					// handle CRLF as well as just CR
+					if (b[i] == '\n') {
+						i++;
+					}
+					boundaryLineEnd();
+					break;
+				default:
+					// The epilogue is ignored
+					i = to;
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Find the first position that starts a delimiter line: a CR, LF or CRLF immediately followed by the delimiter.
+	 * @return the index of the newline before the delimiter, or -1 if none is found.
+	 */
+	private int findDelimiterLine(byte[] b, int from, int to) {
+		int q = from + 1;
+		while ((q = finder.indexOf(b, q, to)) >= 0) {
+			if (q - 2 >= from && b[q - 2] == '\r' && b[q - 1] == '\n') {
+				return q - 2;
+			}
+			if (b[q - 1] == '\r' || b[q - 1] == '\n') {
+				return q - 1;
+			}
+			q++;
+		}
+		return -1;
+	}
+
+	private void hold(byte c) throws IOException {
+		held[heldLength++] = c;
+		state = CANDIDATE;
+		resolveCandidate(false);
+	}
+
+	/**
+	 * Decide whether the held bytes start a boundary, once there are enough of them.
+	 * If they don't, the first byte is content and the rest are processed again.
+	 */
+	private void resolveCandidate(boolean eof) throws IOException {
+		int k = matchDelimiter(eof);
+		if (k == -2) {
+			return;
+		}
+		atStart = false;
+		if (k < 0) {
+			byte[] replay = Arrays.copyOfRange(held, 1, heldLength);
+			heldLength = 0;
+			state = DATA;
+			data(held, 0, 1);
+			process(replay, 0, replay.length);
+		} else {
+			byte[] rest = Arrays.copyOfRange(held, k, heldLength);
+			heldLength = 0;
+			state = AFTER_BOUNDARY;
+			process(rest, 0, rest.length);
+		}
+	}
+
+	/**
+	 * Match the held bytes against an optional CR, an optional LF and the delimiter.
+	 * @return the number of bytes in the match, -1 if there is no match, or -2 if more bytes are needed.
+	 */
+	private int matchDelimiter(boolean eof) {
+		int k = 0;
+		int c = heldAt(0, eof);
+		if (c == -2) return -2;
+		if (c == '\r') {
+			c = heldAt(++k, eof);
+			if (c == -2) return -2;
+		}
+		if (c == '\n') {
+			c = heldAt(++k, eof);
+			if (c == -2) return -2;
+		}
+		for (int j = 0; j < boundary.length; j++) {
+			if (c < 0 || (byte) c != boundary[j]) {
+				return -1;
+			}
+			k++;
+			if (j < boundary.length - 1) {
+				c = heldAt(k, eof);
+				if (c == -2) return -2;
+			}
+		}
+		return k;
+	}
+
+	private int heldAt(int index, boolean eof) {
+		if (index < heldLength) {
+			return held[index] & 0xff;
+		}
+		return eof ? -1 : -2;
+	}
+
+	private void endOfLine(int c) throws IOException {
+		if (c == '\r') {
+			state = AFTER_CR;
+		} else if (c == '\n') {
+			boundaryLineEnd();
+		} else {
+			state = SKIP_LINE;
+		}
+	}
+
+	private void boundaryLineEnd() throws IOException {
+		partEnd();
+		if (lastPart) {
+			state = EPILOGUE;
+			return;
+		}
+		inPreamble = false;
+		if (maxParts >= 0 && partCount == maxParts) {
+			throw new IOException("The message has more than the limit of " + maxParts + " parts");
+		}
+		partCount++;
+		partLength = 0;
+		headerLength = 0;
+		headerState = H_FIRST;
+		headers = new HeaderFields();
+		start = 0;
+		keyStart = -1;
+		keyEnd = -1;
+		inKey = true;
+		atStart = true;
+		state = DATA;
+		listener.partStart();
+	}
+
+	private void partEnd() throws IOException {
+		if (inPreamble) {
+			return;
+		}
+		if (headerState != H_BODY) {
+			// the part ended within the headers
+			if (headerState == H_NEWLINE || headerState == H_NEWLINE_CRLF || headerState == H_NEWLINE_CRLFCR) {
+				afterNewline(-1);
+			}
+			headerState = H_BODY;
+		}
+		listener.partEnd();
+	}
+
+	private void data(byte[] b, int off, int len) throws IOException {
+		if (inPreamble) {
+			preambleLength += len;
+			if (preambleLength > PREEMBLE_LIMIT) {
+				throw new IOException("Can't find first part boundary");
+			}
+			return;
+		}
+		int end = off + len;
+		while (off < end && headerState != H_BODY) {
+			if (maxHeaderLength >= 0 && ++headerLength > maxHeaderLength) {
+				throw new IOException("The headers of the part are longer than the limit of " + maxHeaderLength + " bytes");
+			}
+			headerByte(b[off++] & 0xff);
+		}
+		if (off < end) {
+			if (maxPartLength >= 0) {
+				partLength += end - off;
+				if (partLength > maxPartLength) {
+					throw new IOException("The part is longer than the limit of " + maxPartLength + " bytes");
+				}
+			}
+			listener.bodyChunk(ByteBuffer.wrap(b, off, end - off).slice().asReadOnlyBuffer());
+		}
+	}
+
+	// The header parser works like PartInput.readHeaders(), one byte at a time.
+
+	private void headerByte(int c) throws IOException {
+		switch (headerState) {
+			case H_FIRST:
+				if (c == '\r') {
+					headerState = H_FIRST_CR;
+				} else if (c == '\n') {
+					headerState = H_BODY;
+				} else {
+					headerChar(c);
+				}
+				break;
+			case H_FIRST_CR:
+				// No headers; the byte after the CR is dropped, as PartInput does
+				headerState = H_BODY;
+				break;
+			case H_LINE:
+				headerChar(c);
+				break;
+			case H_NEWLINE:
+				if (newline == '\r' && c == '\n') {
+					headerState = H_NEWLINE_CRLF;
+				} else {
+					afterNewline(c);
+				}
+				break;
+			case H_NEWLINE_CRLF:
+				if (c == '\r') {
+					headerState = H_NEWLINE_CRLFCR;
+				} else {
+					afterNewline(c);
+				}
+				break;
+			case H_NEWLINE_CRLFCR:
+				afterNewline(c);
+				break;
+		}
+	}
+
+	private void headerChar(int c) {
+		headerState = H_LINE;
+		switch (c) {
+			case ':':
+				if (inKey) {
+					keyStart = start;
+					keyEnd = headers.length();
+					start = keyEnd;
+					inKey = false;
+				} else {
+					headers.append(c);
+				}
+				break;
+			case '\t':
+			case ' ':
+				headers.append(' ');
+				break;
+			case '\n':
+			case '\r':
+				newline = c;
+				headerState = H_NEWLINE;
+				break;
+			default:
+				headers.append(c);
+				break;
+		}
+	}
+
+	private void afterNewline(int c) throws IOException {
+		if (c == ' ' || c == '\t') {
+			// line folding
+			headers.append(' ');
+			headerState = H_LINE;
+			return;
+		}
+		// header separator
+		if (keyStart >= 0) {
+			int i = headers.add(keyStart, keyEnd, start, headers.length());
+			listener.header(headers.name(i), headers.value(i));
+		}
+		start = headers.length();
+		if (c == '\r' || c == '\n' || c < 0) {
+			// end of headers
+			headerState = H_BODY;
+			return;
+		}
+		inKey = true;
+		headers.append(c);
+		headerState = H_LINE;
+	}
+
+}
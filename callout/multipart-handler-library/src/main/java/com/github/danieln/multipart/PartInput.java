@@ -5,10 +5,10 @@
  */
 package com.github.danieln.multipart;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 import java.util.Set;
 
 /**
@@ -16,13 +16,31 @@ import java.util.Set;
  */
 public class PartInput {
 
-	private final InputStream stream;
-	private final Map<String, String> headers = new HashMap<String, String>();
+	private final PartInputStream stream;
+	private final ContentLengthMode contentLengthMode;
+	private final int maxHeaderLength;
+	private final long maxBodyLength;
+	private final HeaderFields headers = new HeaderFields();
 
+	private final long headerPosition;
 	private boolean headersParsed;
+	private long bodyPosition;
+	private ByteBuffer body;
 
-	PartInput(InputStream stream) {
+	PartInput(PartInputStream stream, ContentLengthMode contentLengthMode) {
+		this(stream, contentLengthMode, -1, -1);
+	}
+
+	/**
+	 * @param maxHeaderLength the most bytes the headers may have, or -1 for no limit.
+	 * @param maxBodyLength the most bytes the body may have, or -1 for no limit.
+	 */
+	PartInput(PartInputStream stream, ContentLengthMode contentLengthMode, int maxHeaderLength, long maxBodyLength) {
 		this.stream = stream;
+		this.contentLengthMode = contentLengthMode;
+		this.maxHeaderLength = maxHeaderLength;
+		this.maxBodyLength = maxBodyLength;
+		this.headerPosition = stream.position();
 	}
 
 	/**
@@ -35,6 +53,35 @@ public class PartInput {
 		return stream;
 	}
 
+	/**
+	 * Get the body of this part as a read-only ByteBuffer.
+	 * <p>
+	 * If the {@link MultipartInput} was created from a ByteBuffer, the result is a
+	 * slice of that buffer and no bytes are copied. Otherwise the body is read
+	 * from the stream into a new buffer.
+	 * Either way this reads to the end of the part, so the input stream of this
+	 * part will be at end of file afterwards.
+	 * @return the body of this part.
+	 * @throws IOException if a read error occurs.
+	 */
+	public ByteBuffer getByteBuffer() throws IOException {
+		parseHeaders();
+		if (body == null) {
+			if (stream.isSliceable()) {
+				stream.skipToNextPart();
+				body = stream.slice(bodyPosition, stream.getEndPosition());
+			} else {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buf = new byte[8192];
+				for (int n = stream.read(buf); n >= 0; n = stream.read(buf)) {
+					out.write(buf, 0, n);
+				}
+				body = ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer();
+			}
+		}
+		return body.duplicate();
+	}
+
 	/**
 	 * Get the names of the headers. This allows enumeration.
 	 * @return the Set of all header names for this part
@@ -42,7 +89,7 @@ public class PartInput {
 	public Set<String> getHeaderNames() {
 		try {
 			parseHeaders();
-			return headers.keySet();
+			return headers.names();
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
@@ -57,7 +104,7 @@ public class PartInput {
 	public String getHeaderField(String name) {
 		try {
 			parseHeaders();
-			return headers.get(name.toLowerCase());
+			return headers.value(headers.find(name));
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
@@ -83,7 +130,7 @@ public class PartInput {
 	 * @return the same as getHeaderField("content-type").
 	 */
 	public String getContentType() {
-		return getHeaderField("content-type");
+		return getHeaderField(HeaderFields.CONTENT_TYPE);
 	}
 
 	/**
@@ -91,7 +138,57 @@ public class PartInput {
 	 * @return the same as getHeaderFieldInt("content-length", -1).
 	 */
 	public int getContentLength() {
-		return getHeaderFieldInt("content-length", -1);
+		try {
+			return Integer.parseInt(getHeaderField(HeaderFields.CONTENT_LENGTH));
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the value of a well-known header without allocating, unless the value
+	 * has to be decoded.
+	 * @param name the header name, in lower case.
+	 * @return the value of the header, or null if there is no such header.
+	 */
+	String getHeaderField(byte[] name) {
+		try {
+			parseHeaders();
+			return headers.get(name);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Get the position in the input where the headers of this part start.
+	 * @return the position.
+	 */
+	long getHeaderPosition() {
+		return headerPosition;
+	}
+
+	/**
+	 * Get the position in the input where the body of this part starts.
+	 * @return the position.
+	 * @throws IOException if a read error occurs.
+	 */
+	long getBodyPosition() throws IOException {
+		parseHeaders();
+		return bodyPosition;
+	}
+
+	/**
+	 * Get the position in the input where the body of this part ends.
+	 * This skips to the end of the part.
+	 * @return the position.
+	 * @throws IOException if a read error occurs.
+	 */
+	long getEndPosition() throws IOException {
+		parseHeaders();
+		stream.skipToNextPart();
+		return stream.getEndPosition();
 	}
 
 	private void parseHeaders() throws IOException {
@@ -99,9 +196,32 @@ public class PartInput {
 			return;
 		}
 		headersParsed = true;
+		readHeaders();
+		// the part may have ended within the headers
+		long end = stream.getEndPosition();
+		bodyPosition = (end >= 0) ? end : stream.position();
+		checkHeaderLength(bodyPosition);
+		stream.setMaxLength(maxBodyLength);
+		if (contentLengthMode != ContentLengthMode.IGNORE) {
+			int length = getContentLength();
+			if (length >= 0) {
+				stream.setContentLength(length, contentLengthMode == ContentLengthMode.STRICT);
+			}
+		}
+	}
+
+	private void checkHeaderLength(long position) throws IOException {
+		if (maxHeaderLength >= 0 && position - headerPosition > maxHeaderLength) {
+			throw new IOException("The headers of the part are longer than the limit of " + maxHeaderLength + " bytes");
+		}
+	}
 
-		StringBuilder sb = new StringBuilder();
-		String key = null;
+	private void readHeaders() throws IOException {
+		// The header text is collected in headers, and the name and value
+		// of each field are recorded as ranges of that text.
+		int start = 0;
+		int keyStart = -1;
+		int keyEnd = -1;
 		boolean inKey = true;
 		int c = stream.read();
 		if (c == '\r' || c == '\n') {
@@ -116,16 +236,17 @@ public class PartInput {
 			switch (c) {
 				case ':':
 					if (inKey) {
-						key = sb.toString().toLowerCase();
-						sb.setLength(0);
+						keyStart = start;
+						keyEnd = headers.length();
+						start = keyEnd;
 						inKey = false;
 					} else {
-						sb.append((char)c);
+						headers.append(c);
 					}
 					break;
 				case '\t':
 				case ' ':
-					sb.append(' ');
+					headers.append(' ');
 					break;
 				case '\n':
 				case '\r':
@@ -143,26 +264,27 @@ public class PartInput {
 					if (c == ' ' || c == '\t') {
 						// CRWS or LFWS or CRLFWS or CRLFCRWS
 						// line folding
-						sb.append(' ');
+						headers.append(' ');
 					} else {
 						// header separator
-						if (key != null) {
-							headers.put(key, sb.toString().trim());
+						if (keyStart >= 0) {
+							headers.add(keyStart, keyEnd, start, headers.length());
 						}
-						sb.setLength(0);
+						start = headers.length();
 						if (c == '\r' || c == '\n') {
 							// CRCR or LFLF or LFCR or CRLFLF or CRLFCRLF or CRLFCRCR
 							// end of headers
 							break mainloop;
 						}
 						inKey = true;
-						sb.append((char)c);
+						headers.append(c);
 					}
 					break;
 				default:
-					sb.append((char)c);
+					headers.append(c);
 					break;
 			}
+			checkHeaderLength(stream.position());
 			c = stream.read();
 		}
 	}
@@ -7,30 +7,135 @@ package com.github.danieln.multipart;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 
 class PartInputStream extends InputStream {
 
-	private final InputStream stream;
+	// The longest body that is buffered from a stream to check its Content-Length up front
+	private static final int MAX_CHECKED_LENGTH = 1024 * 1024;
+
+	private final LookaheadInputStream stream;
+	private final BoundaryFinder finder;
 	private final byte[] boundary;
 
 	private boolean atStart;
 	private boolean lastPart;
 	private boolean endOfPart;
+	// position in the input where the content of this part ends, once known
+	private long endPosition = -1;
+	// the Content-Length of the body, until it has been checked
+	private long contentLength = -1;
+	private boolean strictLength;
+	// number of bytes that are known to be content, and need not be scanned
+	private long counted;
+	// whether the boundary must be checked once the counted bytes are read
+	private boolean checkAtEnd;
+	// the most bytes the part may have, or -1 for no limit, and the number read since it was set
+	private long maxLength = -1;
+	private long length;
+
+	public PartInputStream(LookaheadInputStream stream, BoundaryFinder finder) {
+		this.stream = stream;
+		this.finder = finder;
+		this.boundary = finder.delimiter();
+		atStart = true;
+	}
+
+	/**
+	 * Set the length of the body, from the Content-Length header of the part.
+	 * The length is checked when the body is first read.
+	 * @param length the length of the body.
+	 * @param strict whether a wrong length is an error, rather than a reason to scan for the boundary.
+	 */
+	void setContentLength(long length, boolean strict) {
+		contentLength = length;
+		strictLength = strict;
+	}
 
-	public PartInputStream(InputStream stream, String boundary) {
+	/**
+	 * Limit the number of bytes that can be read from the part from now on.
+	 * Reading past the limit throws an IOException, before the bytes are passed on.
+	 * @param max the most bytes, or -1 for no limit.
+	 */
+	void setMaxLength(long max) {
+		maxLength = max;
+		length = 0;
+	}
 
-		if (!stream.markSupported()) {
-			throw new IllegalArgumentException("The stream must support mark/reset");
+	private void count(int n) throws IOException {
+		if (maxLength >= 0) {
+			length += n;
+			if (length > maxLength) {
+				throw new IOException("The part is longer than the limit of " + maxLength + " bytes");
+			}
 		}
-		this.stream = stream;
-		try {
-			this.boundary = ("--" + boundary).getBytes("US-ASCII");
-		} catch (UnsupportedEncodingException e) {
-			throw new AssertionError(e.getMessage());
+	}
+
+	/**
+	 * Check whether the boundary follows the body where the Content-Length says,
+	 * and if so, let the body be read without scanning it.
+	 * If the body is too long to buffer from a stream, the check is made at the end
+	 * of the body in strict mode, and the body is scanned otherwise.
+	 */
+	private void checkContentLength() throws IOException {
+		long length = contentLength;
+		contentLength = -1;
+		if (length > MAX_CHECKED_LENGTH && !stream.isSliceable()) {
+			if (strictLength) {
+				counted = length;
+				checkAtEnd = true;
+			}
+		} else if (length <= Integer.MAX_VALUE - boundary.length - 2 && atBoundary((int) length)) {
+			counted = length;
+		} else if (strictLength) {
+			throw new IOException("The boundary doesn't follow the Content-Length (" + length + ") of the part");
+		}
+	}
+
+	/**
+	 * Check whether the boundary, or the end of the input, is at the given distance from the current position.
+	 */
+	private boolean atBoundary(int offset) throws IOException {
+		int avail = stream.fill(offset + boundary.length + 2);
+		if (avail == offset) {
+			return true;
+		}
+		if (avail < offset) {
+			return false;
+		}
+		byte[] buf = stream.buf;
+		int end = stream.count;
+		int q = stream.pos + offset;
+		int i = q;
+		// the same newlines as in read(): CRLF, CR or LF
+		if (i < end && buf[i] == '\r') i++;
+		if (i < end && buf[i] == '\n') i++;
+		if (i == q || end - i < boundary.length) {
+			return false;
+		}
+		for (int j = 0; j < boundary.length; j++) {
+			if (buf[i + j] != boundary[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Prepare for reading the body: check the Content-Length if it hasn't been,
+	 * and check the boundary after a counted body in strict mode.
+	 */
+	private void checkCounted() throws IOException {
+		if (contentLength >= 0) {
+			checkContentLength();
+		}
+		if (checkAtEnd && counted == 0) {
+			checkAtEnd = false;
+			if (!atBoundary(0)) {
+				throw new IOException("The boundary doesn't follow the Content-Length of the part");
+			}
 		}
-		atStart = true;
 	}
 
 	@Override
@@ -38,6 +143,18 @@ class PartInputStream extends InputStream {
 		if (endOfPart) {
 			return -1;
 		}
+		checkCounted();
+		if (counted > 0) {
+			int c = stream.read();
+			if (c < 0) {
+				throw new IOException("Unexpected end of input within the Content-Length of the part");
+			}
+			count(1);
+			counted--;
+			atStart = false;
+			return c;
+		}
+		long here = stream.position();
 		int c = stream.read();
 		if (c == '\r' || c == '\n' || atStart) {
 			int saved = c;
@@ -79,6 +196,7 @@ class PartInputStream extends InputStream {
 				// ready for passing to a new PartInputStream reading the next part.
 				// This PartInputStream wont read any more, but instead signal end of file.
 				endOfPart = true;
+				endPosition = here;
 				return -1;
 			}
 			// It wasn't a boundary after all, rewind to the previous state...
@@ -88,22 +206,131 @@ class PartInputStream extends InputStream {
 			// End of file without boundary
 			endOfPart = true;
 			lastPart = true;
+			endPosition = here;
+			return c;
 		}
+		count(1);
 		atStart = false;
 		return c;
 	}
 
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		int n = 0;
+		while (n < len) {
+			int r = transfer(b, off + n, len - n);
+			if (r < 0) {
+				break;
+			}
+			n += r;
+		}
+		return (n == 0) ? -1 : n;
+	}
+
+	/**
+	 * Move bytes of this part to the given array, or discard them if the array is null.
+	 * <p>
+	 * The buffered window is searched for the delimiter, and every byte before
+	 * the first position where a boundary could begin is passed on in one go.
+	 * Positions that can't be decided from the buffered bytes alone, and the
+	 * boundary itself, are left to {@link #read()}, so the result is exactly the
+	 * same as reading the part one byte at a time.
+	 * @param b the destination, or null to skip.
+	 * @param off the offset in the destination.
+	 * @param len the maximum number of bytes to transfer, must be positive.
+	 * @return the number of bytes transferred, or -1 if read() signalled end of file.
+	 * @throws IOException if a read error occurs.
+	 */
+	private int transfer(byte[] b, int off, int len) throws IOException {
+		if (endOfPart) {
+			return -1;
+		}
+		checkCounted();
+		if (counted > 0) {
+			// The Content-Length has been checked, no need to scan
+			int avail = stream.fill(1);
+			if (avail <= 0) {
+				throw new IOException("Unexpected end of input within the Content-Length of the part");
+			}
+			int n = (int) Math.min(Math.min(len, avail), counted);
+			count(n);
+			if (b != null) {
+				System.arraycopy(stream.buf, stream.pos, b, off, n);
+			}
+			stream.pos += n;
+			counted -= n;
+			atStart = false;
+			return n;
+		}
+		// The boundary may start at the very first byte of a part, with no newline before it.
+		int lookahead = boundary.length + 2;
+		int avail = atStart ? 0 : stream.fill(lookahead);
+		int start = stream.pos;
+		len = Math.min(len, avail);
+		// With less than the lookahead buffered the stream is at EOF, and everything buffered can be decided.
+		int stop = start + Math.min(len, (avail < lookahead) ? avail : avail - lookahead);
+		if (len > 0) {
+			int p = findDelimiterLine(stream.buf, start, Math.min(stream.count, start + len + 1 + boundary.length));
+			if (p >= 0 && p < stop) {
+				stop = p;
+			}
+		}
+		if (stop <= start) {
+			int c = read();
+			if (c < 0) {
+				return -1;
+			}
+			if (b != null) {
+				b[off] = (byte) c;
+			}
+			return 1;
+		}
+		count(stop - start);
+		if (b != null) {
+			System.arraycopy(stream.buf, start, b, off, stop - start);
+		}
+		stream.pos = stop;
+		atStart = false;
+		return stop - start;
+	}
+
+	/**
+	 * Find the first position that starts a delimiter line, the same way {@link #read()} detects it:
+	 * a CR, LF or CRLF immediately followed by the delimiter.
+	 * @return the index of the newline before the delimiter, or -1 if none is found.
+	 */
+	private int findDelimiterLine(byte[] buf, int from, int to) {
+		int q = from + 1;
+		while ((q = finder.indexOf(buf, q, to)) >= 0) {
+			if (q - 2 >= from && buf[q - 2] == '\r' && buf[q - 1] == '\n') {
+				return q - 2;
+			}
+			if (buf[q - 1] == '\r' || buf[q - 1] == '\n') {
+				return q - 1;
+			}
+			q++;
+		}
+		return -1;
+	}
+
 	public void skipToNextPart() throws IOException {
 		while (!endOfPart) {
-			read();
+			transfer(null, 0, Integer.MAX_VALUE);
 		}
 	}
 
 	public void skipToNextPart(int limit) throws IOException {
 		int i = 0;
 		while (!endOfPart && i < limit) {
-			read();
-			i++;
+			int r = transfer(null, 0, limit - i);
+			// a call that signals end of file counts like a single read
+			i += (r < 0) ? 1 : r;
 		}
 	}
 
@@ -111,4 +338,39 @@ class PartInputStream extends InputStream {
 		return lastPart;
 	}
 
+	/**
+	 * Get the position in the input of the next byte to be read.
+	 * @return the position.
+	 */
+	long position() {
+		return stream.position();
+	}
+
+	/**
+	 * Get the position in the input where the content of this part ends,
+	 * that is where the newline before the boundary starts.
+	 * @return the position, or -1 if the end of the part hasn't been reached yet.
+	 */
+	long getEndPosition() {
+		return endPosition;
+	}
+
+	/**
+	 * Check whether {@link #slice(long, long)} can be used.
+	 * @return true if the multipart content is read from a ByteBuffer.
+	 */
+	boolean isSliceable() {
+		return stream.isSliceable();
+	}
+
+	/**
+	 * Get a read-only view of part of the input, without copying.
+	 * @param start the position of the first byte.
+	 * @param end the position after the last byte.
+	 * @return the slice.
+	 */
+	ByteBuffer slice(long start, long end) {
+		return stream.slice(start, end);
+	}
+
 }
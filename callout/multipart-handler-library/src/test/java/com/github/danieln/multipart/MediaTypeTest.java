@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+
+import java.util.Map;
+import junit.framework.TestCase;
+
+
+public class MediaTypeTest extends TestCase {
+
+	public void testParse() {
+		MediaType mt = MediaType.parse("multipart/related; type=\"text/xml\"; start=\"<root>\"; boundary=\"uuid:1234\"");
+		assertEquals("subtype", "related", mt.getSubtype());
+		assertEquals("boundary", "uuid:1234", mt.getBoundary());
+		assertEquals("boundary parameter", "uuid:1234", mt.getParameter("Boundary"));
+		assertEquals("start parameter", "<root>", mt.getParameter("start"));
+		Map<String, String> ps = mt.getParameters();
+		assertEquals("parameter count", 3, ps.size());
+		assertEquals("type value", "text/xml", ps.get("type"));
+		assertEquals("boundary value", "uuid:1234", ps.get("boundary"));
+
+		mt = MediaType.parse("multipart/mixed");
+		assertNull("no boundary", mt.getBoundary());
+		assertEquals("parameter count", 0, mt.getParameters().size());
+		mt = MediaType.parse("multipart/mixed; boundary = 42 ;foo=;bar=   123;baz= \" \" ;");
+		assertEquals("unquoted boundary", "42", mt.getBoundary());
+		assertEquals("baz value", "", mt.getParameter("baz"));
+	}
+
+	public void testOnlyBoundaryDiffers() {
+		MediaType mt1 = MediaType.parse("multipart/related; type=\"text/xml\"; boundary=one");
+		MediaType mt2 = MediaType.parse("multipart/related; type=\"text/xml\"; boundary=\"two\"");
+		MediaType mt3 = MediaType.parse("multipart/related; type=\"text/xml\"; boundary=three");
+		assertEquals("boundary 1", "one", mt1.getBoundary());
+		assertEquals("boundary 2", "two", mt2.getBoundary());
+		assertEquals("boundary 3", "three", mt3.getBoundary());
+		assertEquals("type 3", "text/xml", mt3.getParameter("type"));
+		mt1 = MediaType.parse("multipart/related; boundary=x; type=\"text/plain\"");
+		assertEquals("other parameters are part of the key", "text/plain", mt1.getParameter("type"));
+	}
+
+	public void testErrors() {
+		try {
+			MediaType.parse("text/xml; boundary=qwerty");
+			fail("not multipart");
+		} catch (IllegalArgumentException e) {
+			assertEquals("message", "Not a multipart MIME type: text/xml; boundary=qwerty", e.getMessage());
+		}
+		try {
+			MediaType.parse("multipart/mixed; boundary=a=b");
+			fail("bad parameter");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			MediaType.parse("multipart/mixed; boundary=\"qwerty");
+			fail("unterminated string");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -7,10 +7,14 @@ package com.github.danieln.multipart;
 
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import junit.framework.TestCase;
 
 
@@ -214,4 +218,327 @@ public class MultipartInputTest extends TestCase {
 		assertEquals("Stream 1 length", 14, n);
 
 	}
+
+	public void testBulkReadMatchesSingleByteRead() throws Exception {
+		// a large body with lots of near misses: newlines, dashes and partial boundaries
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			body.append("line ").append(i).append("\r\n--qwert\r-\n--qwertx\r\r\n");
+		}
+		String message = "--qwerty\r\n"
+			+ "Content-Type: application/octet-stream\r\n"
+			+ "\r\n"
+			+ body
+			+ "\r\n--qwerty\r\n"
+			+ "\r\n"
+			+ "--qwerty\n"
+			+ "\n"
+			+ body
+			+ "\r\n--qwerty--";
+		byte[] bytes = message.getBytes("US-ASCII");
+		byte[] expected = body.toString().getBytes("US-ASCII");
+
+		MultipartInput single = new MultipartInput(new ByteArrayInputStream(bytes), "multipart/mixed;boundary=qwerty");
+		MultipartInput bulk = new MultipartInput(new ByteArrayInputStream(bytes), "multipart/mixed;boundary=qwerty");
+		for (int p = 0; p < 3; p++) {
+			PartInput part1 = single.nextPart();
+			PartInput part2 = bulk.nextPart();
+			assertNotNull("Part " + p + " single", part1);
+			assertNotNull("Part " + p + " bulk", part2);
+
+			ByteArrayOutputStream out1 = new ByteArrayOutputStream();
+			InputStream in1 = part1.getInputStream();
+			for (int c = in1.read(); c >= 0; c = in1.read()) {
+				out1.write(c);
+			}
+			ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+			InputStream in2 = part2.getInputStream();
+			byte[] buf = new byte[3000];
+			for (int n = in2.read(buf); n >= 0; n = in2.read(buf)) {
+				out2.write(buf, 0, n);
+			}
+			assertTrue("Part " + p + " content", Arrays.equals(out1.toByteArray(), out2.toByteArray()));
+			if (p != 1) {
+				assertTrue("Part " + p + " body", Arrays.equals(expected, out2.toByteArray()));
+			}
+		}
+		assertNull("Next part single", single.nextPart());
+		assertNull("Next part bulk", bulk.nextPart());
+	}
+
+	public void testByteBufferSlices() throws Exception {
+		String message = "preamble\r\n"
+			+ "--qwerty\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ "This is a test\r\n"
+			+ "--qwerty\r\n"
+			+ "Content-Type: application/octet-stream\r\n"
+			+ "\r\n"
+			+ "\r\n--qwert\r\n"
+			+ "--qwerty--";
+		byte[] bytes = message.getBytes("US-ASCII");
+		ByteBuffer heap = ByteBuffer.wrap(bytes);
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes);
+		direct.flip();
+		for (ByteBuffer buffer : new ByteBuffer[] { heap, direct }) {
+			MultipartInput mpm = new MultipartInput(buffer, "multipart/mixed;boundary=qwerty");
+			PartInput part = mpm.nextPart();
+			assertNotNull("First part", part);
+			assertEquals("Part 1 type", "text/plain", part.getContentType());
+			ByteBuffer body = part.getByteBuffer();
+			assertTrue("Part 1 read-only", body.isReadOnly());
+			assertEquals("Part 1 content", "This is a test", StandardCharsets.US_ASCII.decode(body).toString());
+			assertEquals("Part 1 stream end", -1, part.getInputStream().read());
+
+			part = mpm.nextPart();
+			assertNotNull("Second part", part);
+			assertEquals("Part 2 content", "\r\n--qwert", StandardCharsets.US_ASCII.decode(part.getByteBuffer()).toString());
+			assertNull("Next part", mpm.nextPart());
+			assertEquals("Buffer position", 0, buffer.position());
+		}
+	}
+
+	public void testHeaderFields() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(("--qwerty\r\n"
+			+ "CONTENT-TYPE:  text/plain \r\n"
+			+ "X-Utf8: caf\u00e9\r\n"
+			+ "X-Folded: one\r\n"
+			+ "\ttwo\r\n").getBytes(StandardCharsets.UTF_8));
+		out.write("X-Latin1: caf\u00e9\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		out.write(("Content-Length: 4\r\n"
+			+ "content-type: text/xml\r\n"
+			+ "\r\n"
+			+ "body\r\n"
+			+ "--qwerty--").getBytes(StandardCharsets.UTF_8));
+		MultipartInput mpm = new MultipartInput(new ByteArrayInputStream(out.toByteArray()), "multipart/mixed;boundary=qwerty");
+		PartInput part = mpm.nextPart();
+		assertEquals("last occurrence", "text/xml", part.getContentType());
+		assertEquals("any case", "text/xml", part.getHeaderField("Content-Type"));
+		assertEquals("length", 4, part.getContentLength());
+		assertEquals("UTF-8 value", "caf\u00e9", part.getHeaderField("x-utf8"));
+		assertEquals("ISO-8859-1 value", "caf\u00e9", part.getHeaderField("X-LATIN1"));
+		assertEquals("folded value", "one two", part.getHeaderField("x-folded"));
+		assertNull("missing", part.getHeaderField("x-missing"));
+		assertEquals("names", Arrays.asList("content-type", "x-utf8", "x-folded", "x-latin1", "content-length"),
+				new java.util.ArrayList<String>(part.getHeaderNames()));
+	}
+
+	public void testContentLength() throws Exception {
+		// the body contains something that looks like a boundary, but the length says otherwise
+		String message = "--qwerty\r\n"
+			+ "Content-Length: 18\r\n"
+			+ "\r\n"
+			+ "abc\r\n--qwerty\r\nxyz\r\n"
+			+ "--qwerty\r\n"
+			+ "Content-Length: 99\r\n"
+			+ "\r\n"
+			+ "wrong length\r\n"
+			+ "--qwerty--";
+		byte[] bytes = message.getBytes("US-ASCII");
+
+		MultipartInput mpm = new MultipartInput(new ByteArrayInputStream(bytes), "multipart/mixed;boundary=qwerty");
+		assertEquals("default mode", ContentLengthMode.IGNORE, mpm.getContentLengthMode());
+		assertEquals("Part 1 scanned", "abc", StandardCharsets.US_ASCII.decode(mpm.nextPart().getByteBuffer()).toString());
+
+		for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.wrap(bytes), null }) {
+			mpm = (buffer != null)
+				? new MultipartInput(buffer, "multipart/mixed;boundary=qwerty")
+				: new MultipartInput(new ByteArrayInputStream(bytes), "multipart/mixed;boundary=qwerty");
+			mpm.setContentLengthMode(ContentLengthMode.TRUST);
+			PartInput part = mpm.nextPart();
+			assertEquals("Part 1 counted", "abc\r\n--qwerty\r\nxyz", StandardCharsets.US_ASCII.decode(part.getByteBuffer()).toString());
+			part = mpm.nextPart();
+			assertEquals("Part 2 scanned", "wrong length", StandardCharsets.US_ASCII.decode(part.getByteBuffer()).toString());
+			assertNull("Next part", mpm.nextPart());
+		}
+
+		mpm = new MultipartInput(new ByteArrayInputStream(bytes), "multipart/mixed;boundary=qwerty");
+		mpm.setContentLengthMode(ContentLengthMode.STRICT);
+		InputStream in = mpm.nextPart().getInputStream();
+		byte[] buf = new byte[100];
+		assertEquals("Part 1 length", 18, in.read(buf));
+		in = mpm.nextPart().getInputStream();
+		try {
+			in.read(buf);
+			fail("wrong length");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testIndex() throws Exception {
+		String message = "--qwerty\r\n"
+			+ "Content-Type: application/octet-stream\r\n"
+			+ "Content-ID: <att1@example.com>\r\n"
+			+ "\r\n"
+			+ "attachment\r\n"
+			+ "--qwerty\r\n"
+			+ "Content-Type: text/xml\r\n"
+			+ "Content-ID: < root@example.com >\r\n"
+			+ "\r\n"
+			+ "<root/>\r\n"
+			+ "--qwerty--";
+		byte[] bytes = message.getBytes("US-ASCII");
+		MultipartInput mpm = new MultipartInput(ByteBuffer.wrap(bytes),
+				"multipart/related;boundary=qwerty;start=\"<root@example.com>\"");
+		MultipartIndex index = mpm.index();
+		assertNull("Next part", mpm.nextPart());
+		assertEquals("part count", 2, index.size());
+		assertEquals("root", 1, index.getRoot());
+		assertEquals("find by id", 0, index.indexOf("<att1@example.com>"));
+		assertEquals("find by plain id", 1, index.indexOf("root@example.com"));
+		assertEquals("unknown id", -1, index.indexOf("nope"));
+		assertEquals("Part 2 id", "root@example.com", index.getContentId(1));
+		assertEquals("Part 2 type", "text/xml", index.getContentType(1));
+		assertEquals("Part 1 header offset", 10, index.getHeaderOffset(0));
+		assertEquals("Part 2 body", "<root/>", StandardCharsets.US_ASCII.decode(index.getBody(1)).toString());
+		assertEquals("Part 2 body offset", message.indexOf("<root/>"), index.getBodyOffset(1));
+		assertEquals("Part 2 body length", 7, index.getBodyLength(1));
+		// parts can be retrieved out of order, and more than once
+		for (int i = 0; i < 2; i++) {
+			PartInput part = index.getPart(0);
+			assertEquals("Part 1 type", "application/octet-stream", part.getContentType());
+			assertEquals("Part 1 body", "attachment", StandardCharsets.US_ASCII.decode(part.getByteBuffer()).toString());
+		}
+
+		mpm = new MultipartInput(ByteBuffer.wrap(bytes), "multipart/related;boundary=qwerty");
+		assertEquals("default root", 0, mpm.index().getRoot());
+		try {
+			new MultipartInput(new ByteArrayInputStream(bytes), "multipart/related;boundary=qwerty").index();
+			fail("index of a stream");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testLimits() throws Exception {
+		String message = "--qwerty\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "Content-Length: 10\r\n"
+			+ "\r\n"
+			+ "0123456789\r\n"
+			+ "--qwerty\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ "abc\r\n"
+			+ "--qwerty--";
+		byte[] bytes = message.getBytes("US-ASCII");
+		String contentType = "multipart/mixed;boundary=qwerty";
+
+		for (ContentLengthMode mode : ContentLengthMode.values()) {
+			for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.wrap(bytes), null }) {
+				MultipartInput mpm = (buffer != null)
+					? new MultipartInput(buffer, contentType)
+					: new MultipartInput(new ByteArrayInputStream(bytes), contentType);
+				mpm.setContentLengthMode(mode);
+				mpm.setMaxParts(2);
+				mpm.setMaxPartLength(10);
+				mpm.setMaxHeaderLength(48);
+				assertEquals("Part 1 " + mode, "0123456789", StandardCharsets.US_ASCII.decode(mpm.nextPart().getByteBuffer()).toString());
+				assertEquals("Part 2 " + mode, "abc", StandardCharsets.US_ASCII.decode(mpm.nextPart().getByteBuffer()).toString());
+				assertNull("Next part", mpm.nextPart());
+
+				mpm = (buffer != null)
+					? new MultipartInput(buffer, contentType)
+					: new MultipartInput(new ByteArrayInputStream(bytes), contentType);
+				mpm.setContentLengthMode(mode);
+				mpm.setMaxPartLength(9);
+				try {
+					mpm.nextPart().getByteBuffer();
+					fail("part too long " + mode);
+				} catch (IOException e) {
+					// expected
+				}
+			}
+		}
+
+		MultipartInput mpm = new MultipartInput(ByteBuffer.wrap(bytes), contentType);
+		mpm.setMaxParts(1);
+		try {
+			mpm.index();
+			fail("too many parts");
+		} catch (IOException e) {
+			// expected
+		}
+		mpm = new MultipartInput(ByteBuffer.wrap(bytes), contentType);
+		mpm.setMaxHeaderLength(47);
+		try {
+			mpm.index();
+			fail("headers too long");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testConcurrentRelease() throws Exception {
+		final MultipartInputPool pool = new MultipartInputPool(4);
+		for (int round = 0; round < 200; round++) {
+			final MultipartInput mpm = pool.acquire(ByteBuffer.wrap(new byte[0]), "multipart/mixed;boundary=qwerty");
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread[] threads = new Thread[4];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread() {
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						pool.release(mpm);
+					}
+				};
+				threads[i].start();
+			}
+			start.countDown();
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			assertEquals("idle after concurrent releases", 1, pool.getIdleCount());
+			assertSame("released instance", mpm, pool.acquire(ByteBuffer.wrap(new byte[0]), "multipart/mixed;boundary=qwerty"));
+			assertEquals("idle after acquire", 0, pool.getIdleCount());
+		}
+	}
+
+	public void testReuse() throws Exception {
+		MultipartInputPool pool = new MultipartInputPool(1);
+		MultipartInput mpm = pool.acquire(ByteBuffer.wrap("--qwerty\r\n\r\none\r\n--qwerty--".getBytes(StandardCharsets.US_ASCII)), "multipart/mixed;boundary=qwerty");
+		PartInput part = mpm.nextPart();
+		ByteBuffer body = part.getByteBuffer();
+		pool.release(mpm);
+		pool.release(mpm);
+		assertEquals("idle after double release", 1, pool.getIdleCount());
+		assertEquals("body kept after release", "one", StandardCharsets.US_ASCII.decode(body).toString());
+		try {
+			mpm.nextPart();
+			fail("released instance");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		MultipartInput reused = pool.acquire(new ByteArrayInputStream("--x\r\nContent-Type: text/plain\r\n\r\ntwo\r\n--x--".getBytes(StandardCharsets.US_ASCII)), "multipart/mixed;boundary=x");
+		assertSame("reused instance", mpm, reused);
+		assertEquals("idle while in use", 0, pool.getIdleCount());
+		MultipartInput other = pool.acquire(ByteBuffer.wrap(new byte[0]), "multipart/mixed;boundary=y");
+		assertNotSame("new instance when pool is empty", reused, other);
+		part = reused.nextPart();
+		assertEquals("Content type", "text/plain", part.getContentType());
+		byte[] buf = new byte[8];
+		assertEquals("Part length", 3, part.getInputStream().read(buf));
+		assertEquals("Part body", "two", new String(buf, 0, 3, StandardCharsets.US_ASCII));
+		assertNull("Next part", reused.nextPart());
+		pool.release(reused);
+		pool.release(other);
+		assertEquals("idle capped", 1, pool.getIdleCount());
+
+		try {
+			pool.acquire(ByteBuffer.wrap(new byte[0]), "text/plain");
+			fail("bad content type");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals("idle after failed acquire", 1, pool.getIdleCount());
+	}
 }
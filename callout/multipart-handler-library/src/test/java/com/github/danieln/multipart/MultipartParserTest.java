@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2013, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.multipart;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+
+public class MultipartParserTest extends TestCase {
+
+	private static final String MESSAGE = "preamble\r\n"
+		+ "--qwerty\r\n"
+		+ "Content-Type: text/plain\r\n"
+		+ "Content-ID: <part1>\r\n"
+		+ "\r\n"
+		+ "This is a test\r\n"
+		+ "--qwerty\r\n"
+		+ "Content-Type: application/octet-stream\r\n"
+		+ "\r\n"
+		+ "\r\n--qwert\r\n"
+		+ "--qwerty--\r\n"
+		+ "epilogue";
+
+	/**
+	 * Collects the parts reported by the parser.
+	 */
+	private static class Collector implements MultipartListener {
+		final List<Map<String, String>> headers = new ArrayList<Map<String, String>>();
+		final List<String> bodies = new ArrayList<String>();
+		private ByteArrayOutputStream body;
+		int open;
+
+		public void partStart() {
+			open++;
+			headers.add(new LinkedHashMap<String, String>());
+			body = new ByteArrayOutputStream();
+		}
+
+		public void header(String name, String value) {
+			headers.get(headers.size() - 1).put(name, value);
+		}
+
+		public void bodyChunk(ByteBuffer chunk) {
+			assertTrue("read-only chunk", chunk.isReadOnly());
+			while (chunk.hasRemaining()) {
+				body.write(chunk.get());
+			}
+		}
+
+		public void partEnd() throws IOException {
+			open--;
+			bodies.add(body.toString("US-ASCII"));
+		}
+	}
+
+	private void checkMessage(Collector c) {
+		assertEquals("part count", 2, c.bodies.size());
+		assertEquals("open parts", 0, c.open);
+		assertEquals("Part 1 type", "text/plain", c.headers.get(0).get("content-type"));
+		assertEquals("Part 1 id", "<part1>", c.headers.get(0).get("content-id"));
+		assertEquals("Part 1 content", "This is a test", c.bodies.get(0));
+		assertEquals("Part 2 type", "application/octet-stream", c.headers.get(1).get("content-type"));
+		assertEquals("Part 2 content", "\r\n--qwert", c.bodies.get(1));
+	}
+
+	public void testWholeMessage() throws IOException {
+		Collector c = new Collector();
+		MultipartParser parser = new MultipartParser("multipart/mixed;boundary=qwerty", c);
+		assertEquals("subtype", "mixed", parser.getSubtype());
+		assertEquals("boundary value", "qwerty", parser.getParameter("boundary"));
+		parser.feed(ByteBuffer.wrap(MESSAGE.getBytes("US-ASCII")));
+		assertTrue("complete", parser.isComplete());
+		parser.endOfInput();
+		checkMessage(c);
+	}
+
+	public void testSplitAtEveryPosition() throws IOException {
+		byte[] bytes = MESSAGE.getBytes("US-ASCII");
+		for (int split = 0; split <= bytes.length; split++) {
+			Collector c = new Collector();
+			MultipartParser parser = new MultipartParser("multipart/mixed;boundary=qwerty", c);
+			parser.feed(ByteBuffer.wrap(bytes, 0, split));
+			ByteBuffer rest = ByteBuffer.allocateDirect(bytes.length - split);
+			rest.put(bytes, split, bytes.length - split);
+			rest.flip();
+			parser.feed(rest);
+			assertFalse("Split " + split + " consumed", rest.hasRemaining());
+			parser.endOfInput();
+			checkMessage(c);
+		}
+	}
+
+	public void testOneByteAtATime() throws IOException {
+		Collector c = new Collector();
+		MultipartParser parser = new MultipartParser("multipart/mixed;boundary=qwerty", c);
+		for (byte b : MESSAGE.getBytes("US-ASCII")) {
+			parser.feed(ByteBuffer.wrap(new byte[] { b }));
+		}
+		parser.endOfInput();
+		checkMessage(c);
+	}
+
+	public void testEndOfInputWithoutBoundary() throws IOException {
+		String message = "--qwerty\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ "This is a test\r\n--qwert";	// EOF without boundary
+		Collector c = new Collector();
+		MultipartParser parser = new MultipartParser("multipart/mixed;boundary=qwerty", c);
+		parser.parse(new ByteArrayInputStream(message.getBytes("US-ASCII")));
+		assertTrue("complete", parser.isComplete());
+		assertEquals("part count", 1, c.bodies.size());
+		assertEquals("Part 1 content", "This is a test\r\n--qwert", c.bodies.get(0));
+		try {
+			parser.feed(ByteBuffer.allocate(1));
+			fail("feed after end of input");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testMissingFirstBoundary() throws IOException {
+		byte[] preamble = new byte[3000];
+		MultipartParser parser = new MultipartParser("multipart/mixed;boundary=qwerty", new Collector());
+		try {
+			parser.feed(ByteBuffer.wrap(preamble));
+			fail("preamble too long");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testEndOfInputInPreamble() throws IOException {
+		String message = "This is a preamble\r\n--qwert";	// EOF before the first boundary
+		Collector c = new Collector();
+		MultipartParser parser = new MultipartParser("multipart/mixed;boundary=qwerty", c);
+		try {
+			parser.parse(new ByteArrayInputStream(message.getBytes("US-ASCII")));
+			fail("no first boundary");
+		} catch (IOException e) {
+			assertEquals("Can't find first part boundary", e.getMessage());
+		}
+		assertEquals("part count", 0, c.bodies.size());
+	}
+
+	public void testLimits() throws IOException {
+		// the same message and limits as MultipartInputTest.testLimits
+		String message = "--qwerty\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "Content-Length: 10\r\n"
+			+ "\r\n"
+			+ "0123456789\r\n"
+			+ "--qwerty\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ "abc\r\n"
+			+ "--qwerty--";
+		byte[] bytes = message.getBytes("US-ASCII");
+
+		Collector c = new Collector();
+		MultipartParser parser = new MultipartParser("multipart/mixed;boundary=qwerty", c);
+		parser.setMaxParts(2);
+		parser.setMaxPartLength(10);
+		parser.setMaxHeaderLength(48);
+		for (byte b : bytes) {
+			parser.feed(ByteBuffer.wrap(new byte[] { b }));
+		}
+		parser.endOfInput();
+		assertEquals("part count", 2, c.bodies.size());
+
+		for (int limit = 0; limit < 3; limit++) {
+			parser = new MultipartParser("multipart/mixed;boundary=qwerty", new Collector());
+			if (limit == 0) {
+				parser.setMaxParts(1);
+			} else if (limit == 1) {
+				parser.setMaxPartLength(9);
+			} else {
+				parser.setMaxHeaderLength(47);
+			}
+			try {
+				parser.parse(new ByteArrayInputStream(bytes));
+				fail("limit " + limit + " exceeded");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testNoBoundary() {
+		try {
+			new MultipartParser("multipart/mixed", new Collector());
+			fail("no boundary");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}